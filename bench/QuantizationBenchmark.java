@@ -0,0 +1,330 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationBenchmark class
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// benchmark harness for the stages of the pipeline: median cut, its sorting and range scans, palette mapping, .bmp writing
+// and .raw reading
+// every benchmark is run on synthetic images of several sizes and on the images in the input directory, over a range of
+// palette sizes; each case gets warmup runs before it is measured, so the JIT has compiled the code being timed
+// per-operation setup (such as restoring the unsorted pixels) is done outside the timed region
+// before the mappers are timed, the exhaustive mapper's block search is checked against its plain reference search on
+// every pixel, and the run stops with an exception if they disagree
+// the alloc KB column is the least memory the timing thread allocated in one measured run (work handed to other threads,
+// such as a fork/join pool, is not counted); the -reused cases keep their buffers between runs and should show close to 0
+// Args (all optional):
+// --filter=text       only run benchmarks whose name contains the text
+// --colors=4-256      palette sizes (powers of 2)
+// --sizes=256,1024    widths of the square synthetic images
+// --inputs=./input    directory of .raw fixtures (name_WxH.raw), "none" to skip them
+// --warmup=3          warmup runs per case
+// --iterations=5      measured runs per case
+// --csv=path          also write the results as CSV so they can be tracked between versions
+public class QuantizationBenchmark {
+
+    // work done before each measured operation, not timed
+    interface Setup {
+        void run() throws Exception;
+    }
+
+    // the measured operation; its result is folded into a checksum so the JIT cannot drop the work
+    interface Operation {
+        Object run() throws Exception;
+    }
+
+    // an image the benchmarks run on
+    static class Fixture {
+        String name;
+        int width;
+        int height;
+        int[] pixels;
+        Path rawFile; // null for synthetic images
+
+        Fixture(String name, int width, int height, int[] pixels, Path rawFile) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.rawFile = rawFile;
+        }
+    }
+
+    // pixels kept by the sampling benchmarks
+    private static final int SAMPLE_BUDGET = 1 << 16;
+
+    private String filter = "";
+    private int warmupRuns = 3;
+    private int measuredRuns = 5;
+    private long checksum;
+    private List<String> csvLines = new ArrayList<>();
+    private com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        List<String> positionalArgs = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        App.parseOptions(args, positionalArgs, options);
+
+        QuantizationBenchmark benchmark = new QuantizationBenchmark();
+        benchmark.filter = options.getOrDefault("filter", "");
+        benchmark.warmupRuns = Integer.parseInt(options.getOrDefault("warmup", "3"));
+        benchmark.measuredRuns = Integer.parseInt(options.getOrDefault("iterations", "5"));
+
+        String[] colorRange = options.getOrDefault("colors", "4-256").split("-", 2);
+        List<Integer> paletteSizes = new ArrayList<>();
+        for (int numColors = Integer.parseInt(colorRange[0]); numColors <= Integer.parseInt(colorRange[colorRange.length - 1]); numColors *= 2) {
+            paletteSizes.add(numColors);
+        }
+
+        List<Fixture> fixtures = new ArrayList<>();
+        for (String size : options.getOrDefault("sizes", "256,1024").split(",")) {
+            int side = Integer.parseInt(size.trim());
+            fixtures.add(new Fixture("synthetic_" + side + "x" + side, side, side, syntheticImage(side, side, side), null));
+        }
+        String inputs = options.getOrDefault("inputs", "./input");
+        if (!inputs.equals("none")) {
+            fixtures.addAll(rawFixtures(Paths.get(inputs)));
+        }
+
+        System.out.println(String.format("%-24s %-26s %7s %10s %10s %10s %10s", "benchmark", "image", "colors", "mean ms", "stddev ms", "min ms", "alloc KB"));
+        benchmark.csvLines.add("benchmark,image,colors,mean_ms,stddev_ms,min_ms,alloc_kb");
+        for (Fixture fixture : fixtures) {
+            benchmark.runAll(fixture, paletteSizes);
+        }
+        System.out.println("(checksum " + benchmark.checksum + ")");
+
+        if (options.containsKey("csv")) {
+            Files.write(Paths.get(options.get("csv")), benchmark.csvLines);
+        }
+    }
+
+    // method to run every benchmark on one image
+    private void runAll(Fixture fixture, List<Integer> paletteSizes) throws Exception {
+        int[] container = new int[fixture.pixels.length];
+        Setup restorePixels = () -> System.arraycopy(fixture.pixels, 0, container, 0, container.length);
+
+        // sorting and range scans over the whole image, the work done for the first box of median cut
+        ColorReducer sorter = new ColorReducer(container, 2);
+        measure("mergeSort", fixture, 0, restorePixels, () -> {
+            sorter.mergeSort(0, container.length - 1, 'R');
+            return container[container.length / 2];
+        });
+        measure("countingSort", fixture, 0, restorePixels, () -> {
+            sorter.countingSort(0, container.length - 1, 'R');
+            return container[container.length / 2];
+        });
+        measure("findLargestRange", fixture, 0, restorePixels, () -> sorter.findLargestRange(0, container.length - 1));
+        measure("boxStats", fixture, 0, restorePixels, () -> BoxStats.of(container, null, 0, container.length - 1).getLargestRangeChannel());
+
+        measure("contentHash", fixture, 0, null, () -> PaletteCache.contentHash(fixture.pixels, fixture.width, fixture.height));
+
+        ColorHistogram histogram = ColorHistogram.of(fixture.pixels, 8);
+        measure("histogram-exact", fixture, 0, null, () -> ColorHistogram.of(fixture.pixels, 8).getDistinctColors());
+
+        // palette pixels drawn with each sampling method at a fixed budget
+        for (String method : PixelSampler.METHODS) {
+            measure("sample-" + method, fixture, 0, null,
+                    () -> PixelSampler.sample(method, fixture.pixels, fixture.width, fixture.height, SAMPLE_BUDGET, PixelSampler.DEFAULT_SEED).length);
+        }
+
+        // conversion of the whole image into each color space other than rgb (a fresh space each run, so its cache starts cold)
+        int[] converted = new int[fixture.pixels.length];
+        for (String space : ColorSpace.SPACES) {
+            if (!space.equals("rgb")) {
+                measure("convert-" + space, fixture, 0, null, () -> {
+                    ColorSpace.forName(space).fromRGB(fixture.pixels, 0, converted, 0, converted.length);
+                    return converted[converted.length / 2];
+                });
+            }
+        }
+
+        if (fixture.rawFile != null) {
+            measure("readRaw", fixture, 0, null, () -> new RawImageReader(fixture.rawFile.toString(), fixture.width, fixture.height).readPixels());
+            QuantizationWorkspace readWorkspace = new QuantizationWorkspace();
+            measure("readRaw-reused", fixture, 0, null,
+                    () -> readWorkspace.readPixels(new RawImageReader(fixture.rawFile.toString(), fixture.width, fixture.height)));
+        }
+
+        Path bmpFile = Files.createTempFile("benchmark", ".bmp");
+        int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        ExecutorService remapPool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int numColors : paletteSizes) {
+                measure("medianCut", fixture, numColors, restorePixels, () -> {
+                    ColorReducer reducer = new ColorReducer(container, numColors);
+                    reducer.medianCut();
+                    return reducer.getColorPalette();
+                });
+                QuantizationWorkspace workspace = new QuantizationWorkspace();
+                measure("medianCut-reused", fixture, numColors, null, () -> {
+                    ColorReducer reducer = workspace.reducer(workspace.copyToContainer(fixture.pixels, fixture.pixels.length), fixture.pixels.length, numColors);
+                    reducer.medianCut();
+                    return reducer.getColorPalette();
+                });
+                measure("medianCut-mean", fixture, numColors, restorePixels, () -> {
+                    ColorReducer reducer = new ColorReducer(container, numColors);
+                    reducer.setBoxColor("mean");
+                    reducer.medianCut();
+                    return reducer.getColorPalette();
+                });
+                for (String splitOrder : new String[] {"range", "variance"}) {
+                    measure("medianCut-" + splitOrder, fixture, numColors, restorePixels, () -> {
+                        ColorReducer reducer = new ColorReducer(container, numColors);
+                        reducer.setSplitOrder(splitOrder);
+                        reducer.medianCut();
+                        return reducer.getColorPalette();
+                    });
+                }
+                for (String engine : Quantizer.ENGINES) {
+                    measure("quantize-" + engine, fixture, numColors, null, () -> Quantizer.create(engine, 1).findPalette(fixture.pixels, numColors));
+                }
+                int[] sample = PixelSampler.stride(fixture.pixels, SAMPLE_BUDGET);
+                int[] sampleContainer = new int[sample.length];
+                measure("medianCut-sampled", fixture, numColors, () -> System.arraycopy(sample, 0, sampleContainer, 0, sample.length), () -> {
+                    ColorReducer reducer = new ColorReducer(sampleContainer, numColors);
+                    reducer.medianCut();
+                    return reducer.getColorPalette();
+                });
+                measure("medianCut-histogram", fixture, numColors, null, () -> {
+                    ColorReducer reducer = new ColorReducer(histogram, numColors);
+                    reducer.medianCut();
+                    return reducer.getColorPalette();
+                });
+
+                // palette and split tree for the mapping and writing benchmarks
+                restorePixels.run();
+                ColorReducer reducer = new ColorReducer(container, numColors);
+                reducer.medianCut();
+                int[] packedPalette = PaletteMapper.packPalette(reducer.getColorPalette());
+                byte[] indices = new byte[fixture.pixels.length];
+                if ("map-exhaustive".contains(filter)) {
+                    verifyExhaustive(fixture, packedPalette, indices);
+                }
+                for (String strategy : PaletteMapper.STRATEGIES) {
+                    measure("map-" + strategy, fixture, numColors, null, () -> {
+                        PaletteMapper mapper = PaletteMapper.create(strategy, packedPalette, reducer.getSplitTree());
+                        mapper.mapPixels(fixture.pixels, 0, indices, 0, indices.length);
+                        return indices[indices.length / 2];
+                    });
+                }
+
+                // whole-image remapping with each dither mode, on one thread and split between the threads of a pool
+                for (String dither : ImageRemapper.DITHER_MODES) {
+                    measure("remap-" + dither, fixture, numColors, null, () -> {
+                        ImageRemapper remapper = new ImageRemapper("cache", packedPalette, reducer.getSplitTree(), fixture.width, dither, null, 1);
+                        remapper.remapRows(fixture.pixels, 0, indices, 0, fixture.height);
+                        return indices[indices.length / 2];
+                    });
+                    measure("remap-" + dither + "-x" + threads, fixture, numColors, null, () -> {
+                        ImageRemapper remapper = new ImageRemapper("cache", packedPalette, reducer.getSplitTree(), fixture.width, dither, remapPool, threads);
+                        remapper.remapRows(fixture.pixels, 0, indices, 0, fixture.height);
+                        return indices[indices.length / 2];
+                    });
+                }
+
+                for (String format : BMPWriter.FORMATS) {
+                    measure("writeBMP-" + format, fixture, numColors, null, () -> {
+                        BMPWriter.writeBMPFile(fixture.width, fixture.height, reducer.getColorPalette(), indices, bmpFile.toString(), format);
+                        return Files.size(bmpFile);
+                    });
+                }
+            }
+        } finally {
+            remapPool.shutdownNow();
+            Files.deleteIfExists(bmpFile);
+        }
+    }
+
+    // method to check that the block search of the exhaustive mapper, and its search for one pixel, give every pixel of
+    // the image the index of the plain loop over the palette (ExhaustivePaletteMapper.referenceIndex)
+    private static void verifyExhaustive(Fixture fixture, int[] packedPalette, byte[] indices) {
+        ExhaustivePaletteMapper mapper = new ExhaustivePaletteMapper(packedPalette);
+        mapper.mapPixels(fixture.pixels, 0, indices, 0, indices.length);
+        for (int p = 0; p < indices.length; p++) {
+            int expected = mapper.referenceIndex(fixture.pixels[p]);
+            if ((indices[p] & 0xFF) != expected || mapper.mapPixel(fixture.pixels[p]) != expected) {
+                throw new IllegalStateException("exhaustive mapper differs from the reference search at pixel " + p + " of " + fixture.name
+                        + " with " + packedPalette.length + " colors");
+            }
+        }
+    }
+
+    // method to warm up and then time one benchmark case, printing mean, standard deviation and minimum
+    private void measure(String name, Fixture fixture, int numColors, Setup setup, Operation operation) throws Exception {
+        if (!name.contains(filter)) {
+            return;
+        }
+        double[] millis = new double[measuredRuns];
+        long allocatedBytes = Long.MAX_VALUE;
+        long threadId = Thread.currentThread().getId();
+        for (int run = 0; run < warmupRuns + measuredRuns; run++) {
+            if (setup != null) {
+                setup.run();
+            }
+            long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+            long startTime = System.nanoTime();
+            Object result = operation.run();
+            long timeElapsed = System.nanoTime() - startTime;
+            long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+            checksum += Objects.hashCode(result);
+            if (run >= warmupRuns) {
+                millis[run - warmupRuns] = timeElapsed / 1e6;
+                allocatedBytes = Math.min(allocatedBytes, allocated);
+            }
+        }
+
+        double mean = Arrays.stream(millis).average().orElse(0);
+        double variance = Arrays.stream(millis).map(m -> (m - mean) * (m - mean)).sum() / Math.max(1, millis.length - 1);
+        double min = Arrays.stream(millis).min().orElse(0);
+        String colors = numColors == 0 ? "-" : Integer.toString(numColors);
+        double allocatedKB = allocatedBytes == Long.MAX_VALUE ? 0 : allocatedBytes / 1024.0;
+        System.out.println(String.format("%-24s %-26s %7s %10.3f %10.3f %10.3f %10.1f", name, fixture.name, colors, mean, Math.sqrt(variance), min, allocatedKB));
+        csvLines.add(String.format(Locale.ROOT, "%s,%s,%s,%.4f,%.4f,%.4f,%.1f", name, fixture.name, colors, mean, Math.sqrt(variance), min, allocatedKB));
+    }
+
+    // method to make a deterministic test image: smooth gradients with noise, so it has many distinct colors
+    static int[] syntheticImage(int width, int height, long seed) {
+        Random random = new Random(seed);
+        int[] pixels = new int[width * height];
+        for (int h = 0; h < height; h++) {
+            for (int w = 0; w < width; w++) {
+                int R = clamp(w * 255 / width + random.nextInt(32) - 16);
+                int G = clamp(h * 255 / height + random.nextInt(32) - 16);
+                int B = clamp((w + h) * 255 / (width + height) + random.nextInt(64) - 32);
+                pixels[h * width + w] = RGB.pack(R, G, B);
+            }
+        }
+        return pixels;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    // method to load the name_WxH.raw files of a directory as fixtures
+    static List<Fixture> rawFixtures(Path directory) throws IOException {
+        List<Fixture> fixtures = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return fixtures;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*_*x*.raw")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String[] splitWH = name.substring(name.lastIndexOf('_') + 1, name.length() - ".raw".length()).split("x", 2);
+                int width = Integer.parseInt(splitWH[0]);
+                int height = Integer.parseInt(splitWH[1]);
+                int[] pixels = new RawImageReader(file.toString(), width, height).readPixels();
+                fixtures.add(new Fixture(name, width, height, pixels, file));
+            }
+        }
+        fixtures.sort(Comparator.comparing(fixture -> fixture.name));
+        return fixtures;
+    }
+}
@@ -5,7 +5,10 @@
  * Main method
  */
 
-import java.io.*;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.*;
 
 public class App {
 
@@ -19,184 +22,249 @@ public class App {
         return true;
     }
 
+    // method to separate "--name=value" options from the positional arguments
+    // an option given without a value (e.g. "--flag") is stored with the value "true"
+    public static void parseOptions(String[] args, List<String> positionalArgs, Map<String, String> options) {
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                String[] splitOption = arg.substring(2).split("=", 2);
+                options.put(splitOption[0], splitOption.length == 2 ? splitOption[1] : "true");
+            } else {
+                positionalArgs.add(arg);
+            }
+        }
+    }
+
     /*
      * Main method
      * Reads from .raw file as specified
      * Instantiates object of ColorReducer class and reduces colors down to desired palette
      * Writes output to .bmp file
      * Args:
-     * path to .raw file, palette size (number or range in form: small-large)
+     * path to .raw file, palette size (number up to 256, list in form: a,b,c or range of powers of 2 in form: small-large)
+     * Options:
+     * --quantizer=mediancut|octree|wu|kmeans picks the palette engine (default mediancut)
+     * --split=balanced|range|variance picks which box median cut splits next (default balanced, every box in turn)
+     * --box-color=midpoint|mean picks the color of each median cut box (default midpoint, the center of its bounds)
+     * --histogram=exact|6|5 runs median cut over a color histogram (exact 24-bit, or 6/5 bits per channel) instead of raw pixels
+     * --parallelism=N runs median cut on N threads
+     * --mapper=exhaustive|kdtree|cache|lut5|lut6|boxtree|boxtree-exact|direct picks how pixels are assigned to palette colors
+     *   (default cache; direct keeps the box median cut put each pixel in)
+     * --dither=none|ordered|floyd-steinberg dithers while mapping pixels to the palette
+     * --color-space=rgb|ycbcr|oklab finds the palette and maps pixels in a perceptual color space instead of RGB (see ColorSpace)
+     * --sample=stride|reservoir|stratified builds the palette from a sample of --sample-budget=N pixels (default 65536)
+     * --bmp=packed|8bit|rle picks the output layout (default packed: 1, 4 or 8 bits per pixel as the palette needs)
+     * --quality prints the PSNR of each palette and of the palette the same settings build from every pixel
+     * --cache[=DIR] reuses the palettes of an image quantized before, kept in memory (and in DIR between runs; see PaletteCache)
+     * --streaming reads the file twice a chunk of rows at a time instead of holding the image, for images larger than memory
+     *   (needs --histogram or --sample=reservoir with median cut, or --quantizer=octree)
+     * --metrics[=FILE] publishes per-stage timings and counters over JMX (and writes them to FILE as JSON or CSV; see MetricsReport)
+     * --batch treats the path as a directory, glob pattern or manifest file of .raw files (see BatchRunner)
+     * --serve[=PORT] takes no arguments and instead quantizes pixels posted to a local HTTP endpoint (see QuantizationServer)
      */
     public static void main(String[] args) throws Exception {
 
         System.out.println();
 
-        if (args.length != 2) {
+        List<String> positionalArgs = new ArrayList<>();
+        Map<String, String> options = new HashMap<>();
+        parseOptions(args, positionalArgs, options);
+
+        // server mode takes no path or palette size: every request brings its own
+        if (options.containsKey("serve")) {
+            serve(options);
+            return;
+        }
+
+        if (positionalArgs.size() != 2) {
             System.out.println("Please re-run with the correct number of arguments.");
-            System.out.println("Example: scriptName fileFlag rangeFlag path paletteSize");
+            System.out.println("Example: scriptName path paletteSize [--histogram=exact|6|5] [--parallelism=N] [--quantizer=name] [--split=order] [--box-color=midpoint|mean] [--mapper=name] [--dither=mode] [--color-space=name] [--bmp=format] [--streaming] [--cache[=dir]] [--metrics[=file]] [--batch]");
+            System.out.println("Server: scriptName --serve[=port] [--workers=N] [--queue=N] [--deadline=ms] [--cache[=dir]] [--metrics[=file]]");
             return;
         }
 
-        // path of the input file
-        String path = args[0];
+        // path of the input file (or batch of files)
+        String path = positionalArgs.get(0);
 
-        // number or range for the palette size (note: input integer(s) should be powers of 2)
-        // Example: 8 or 8-32
-        String[] paletteSizeArgs = args[1].split("-",2);
-        int[] paletteSizeArray = new int[paletteSizeArgs.length];
+        QuantizationOptions quantizationOptions;
+        try {
+            quantizationOptions = QuantizationOptions.parse(positionalArgs.get(1), options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println();
+            return;
+        }
 
-        // check and parse paletteSize argument
-        int i = 0;
-        for (String stringSize : paletteSizeArgs) {
-            int sizeInt;
+        // optional cache of finished palettes
+        PaletteCache paletteCache;
+        try {
+            paletteCache = PaletteCache.fromOptions(quantizationOptions, options);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println();
+            return;
+        }
+
+        // optional report of per-stage timings and counters
+        MetricsReport metricsReport = MetricsReport.fromOptions(options);
+
+        if (options.containsKey("batch")) {
+            BatchRunner batchRunner;
             try {
-                sizeInt = Integer.parseInt(stringSize);
-            } catch (Exception e) {
-                System.out.println("Please enter an integer (int) or range of integers (int-int) as the second argument.");
+                batchRunner = BatchRunner.fromOptions(quantizationOptions, options);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
                 System.out.println();
                 return;
             }
-            if (!checkIsPower(sizeInt, 2)) {
-                System.out.println("Please enter power(s) of 2 as the second argument.");
-                System.out.println();
-                return;
-            }
-            paletteSizeArray[i] = sizeInt;
-            i++;
-        }
-        if (paletteSizeArray.length == 2) {
-            if (paletteSizeArray[0] > paletteSizeArray[1]) {
-                System.out.println("Please enter a range where the first integer is less than or equal to the second.");
-                System.out.println();
-                return;
+            batchRunner.setPaletteCache(paletteCache);
+            batchRunner.setMetricsReport(metricsReport);
+            batchRunner.run(path);
+            if (metricsReport != null) {
+                metricsReport.write();
             }
+            return;
         }
 
         // check .raw file and parse out relevant info
         // filename must be formatted as: name_widthxheight.raw
-
-        // split path to separate filename
-        String[] splitPath = path.split("/");
-        String filename = splitPath[splitPath.length-1];
-
-        String[] splitExtension = filename.split("\\.",2);
-        if ((splitExtension.length == 1) ||  !splitExtension[splitExtension.length-1].equals("raw")) {
-            System.out.println("Please enter a path with file ending in .raw extension.");
-            System.out.println();
-            return;
-        }
-        String[] splitDimensions = splitExtension[0].split("_",2);
-        if (splitDimensions.length != 2) {
-            System.out.println("Please enter enter a path with file in the format: path/name_widthxheight.raw.");
-            System.out.println("Where width and height are numbers specifying the width and height of the .raw file in the filename.");
+        RawImageReader reader;
+        try {
+            reader = RawImageReader.forFile(path);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             System.out.println();
             return;
         }
-        String[] splitWH = splitDimensions[1].split("x",2);
-        if (splitWH.length != 2) {
-            System.out.println("Please enter enter a path with file in the format: path/name_widthxheight.raw.");
-            System.out.println("Where width and height are numbers specifying the width and height of the .raw file in the filename.");
-            System.out.println();
-            return;
+
+        QuantizationMetrics metrics = new QuantizationMetrics();
+        quantizeFile(reader, positionalArgs.get(1), quantizationOptions, paletteCache, new QuantizationWorkspace(), metrics, true);
+        if (metricsReport != null) {
+            metricsReport.add(reader.getPath(), metrics);
+            metricsReport.write();
         }
-        int width;
-        int height;
+    }
+
+    // method to start a QuantizationServer with the --serve options and keep it running until the JVM is stopped
+    private static void serve(Map<String, String> options) throws Exception {
+        QuantizationServer server;
         try {
-            width = Integer.parseInt(splitWH[0]);
-            height = Integer.parseInt(splitWH[1]);
-        } catch (Exception e) {
-            System.out.println("Please enter enter a path with file in the format: path/name_widthxheight.raw.");
-            System.out.println("Where width and height are numbers specifying the width and height of the .raw file in the filename.");
+            PaletteCache paletteCache = PaletteCache.fromOptions(new QuantizationOptions(1), options);
+            server = QuantizationServer.fromOptions(options, paletteCache, MetricsReport.fromOptions(options));
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
             System.out.println();
             return;
         }
+        int port = server.start();
+        System.out.println("Listening on http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + port + "/quantize");
+        System.out.println();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.stop();
+            } catch (IOException e) {
+                System.out.println("Could not write the metrics: " + e.getMessage());
+            }
+        }));
+    }
 
-        InputStream is = new FileInputStream(path);
-        DataInputStream input = new DataInputStream(is);
-
-        // 2d array to save pixel positions
-        RGB[][] pixelArray = new RGB[height][width];
+    // method to quantize one .raw file and write a .bmp file for every palette size to ./output (see QuantizationPipeline)
+    // with a palette cache (which may be null), palettes found before for the same pixels and settings are reused
+    // the image-sized arrays come from the workspace, so a caller quantizing many images on one thread reuses them
+    // the time of every stage and the work counters are added to metrics
+    // prints the box-drawn table of timings when printTable is set; returns the number of pixels processed
+    public static long quantizeFile(RawImageReader reader, String paletteSizeLabel, QuantizationOptions quantizationOptions,
+            PaletteCache paletteCache, QuantizationWorkspace workspace, QuantizationMetrics metrics, boolean printTable) throws Exception {
 
-        // 1d array to save pixels for median cut algorithm
-        RGB[] container = new RGB[height*width];
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        int threads = quantizationOptions.getParallelism();
 
-        //reads in pixel data to both arrays
-        int index = 0;
-        for(int h = 0; h < height; h++) {
-            for(int w = 0; w < width; w++) {
-                int R = input.readUnsignedByte();
-                int G = input.readUnsignedByte();
-                int B = input.readUnsignedByte();
-                RGB pixel = new RGB(R, G, B);
+        boolean streaming = quantizationOptions.isStreaming();
 
-                pixelArray[h][w] = pixel;
+        // a .bmp file per palette size in ./output
+        // the writers take turns, so they share one row buffer big enough for a block (or, for direct mapping, the image)
+        int rowsPerBlock = QuantizationPipeline.rowsPerBlock(width, streaming ? QuantizationPipeline.rowsPerChunk(width, height) : height, threads);
+        ByteBuffer rowBuffer = workspace.rowBuffer(width, quantizationOptions.isDirectMapping() ? height : rowsPerBlock);
+        QuantizationSink.Factory bmpFiles = (numColors, palette, sinkWidth, sinkHeight) -> new BMPWriter(
+                "./output/" + reader.getName() + "_" + Integer.toString(numColors) + "colors.bmp", sinkWidth, sinkHeight, palette,
+                quantizationOptions.getBmpFormat(), rowBuffer);
 
-                container[index] = pixel;
-                index++;
-            }
+        // pixel buffer in row-major order, each pixel packed as 0xRRGGBB (no object is allocated per pixel)
+        // when streaming, the file is read twice a chunk of rows at a time instead
+        QuantizationPipeline pipeline = new QuantizationPipeline(quantizationOptions, paletteCache);
+        int[] pixelArray = null;
+        QuantizationResult result;
+        if (streaming) {
+            result = pipeline.quantizeStreaming(reader, bmpFiles, metrics, workspace);
+        } else {
+            long stageStart = System.nanoTime();
+            pixelArray = workspace.readPixels(reader);
+            metrics.addTimeSince(QuantizationMetrics.READ, stageStart);
+            result = pipeline.quantize(pixelArray, width, height, bmpFiles, metrics, workspace);
         }
-        input.close();
-
-        // main loop
-        // for each palette size specified in the range, perform medianCut algorithm and output to .bmp file
-        for (int numColors = paletteSizeArray[0]; numColors <= paletteSizeArray[paletteSizeArray.length-1]; numColors *= 2){
 
-            // prints filename and number of colors for current iteration
+        // prints filename, number of colors and the execution times of finding the palettes (or of the cache lookup) and of
+        // the palette mapping and output
+        if (printTable) {
             System.out.println("+-----------------------------------------------------+");
-            String execFilenamePrint = String.format("| Executing on %-38s |", filename);
+            String execFilenamePrint = String.format("| Executing on %-38s |", reader.getPath().substring(reader.getPath().lastIndexOf('/') + 1));
             System.out.println(execFilenamePrint);
-            String numberColorsPrint = String.format("| Number of colors: %-34d|", numColors);
+            String numberColorsPrint = String.format("| Number of colors: %-34s|", paletteSizeLabel);
             System.out.println(numberColorsPrint);
-
-            //creates median cutter object
-            ColorReducer colorPaletteFinder = new ColorReducer(container, numColors);
-
-            long startTime = System.nanoTime();
-
-            //call to the median cut algorithm to find the colors for the color table
-            colorPaletteFinder.medianCut();
-
-            long endTime = System.nanoTime();
-            long timeElapsed = endTime - startTime;
-
-            // prints execution time of color reduction algorithm
-            String execTime = "Execution time of medianCut in milliseconds: " + (timeElapsed / 1000000);
+            if (result.getSampledPixels() >= 0) {
+                String sampled = "Sampled pixels (" + quantizationOptions.getSampleMethod() + "): " + result.getSampledPixels();
+                String samplePrint = String.format("| %-52s|", sampled);
+                System.out.println(samplePrint);
+            }
+            if (result.getHistogramBins() >= 0) {
+                String binsPrint = String.format("| Histogram bins: %-36d|", result.getHistogramBins());
+                System.out.println(binsPrint);
+            }
+            String engine = quantizationOptions.getQuantizer();
+            String execTime = "Execution time of " + (result.isCacheHit() ? "palette cache" : engine.equals("mediancut") ? "medianCut" : engine)
+                    + " in milliseconds: " + (result.getPaletteNanos() / 1000000);
             String execTimePrint = String.format("| %-52s|", execTime);
             System.out.println(execTimePrint);
+            String mapTime = "Time of " + quantizationOptions.getMapperStrategy() + " mapping + output in ms: " + (result.getOutputNanos() / 1000000);
+            String mapTimePrint = String.format("| %-52s|", mapTime);
+            System.out.println(mapTimePrint);
+            if (quantizationOptions.isReportQuality()) {
+                printQuality(pixelArray, width, height, result, quantizationOptions);
+            }
             System.out.println("+-----------------------------------------------------+");
             System.out.println();
+        }
+        return (long) width * height;
+    }
 
+    // method to print the PSNR of each palette next to the PSNR of the palette the same engine and settings find from every
+    // pixel, so the difference is what sampling costs
+    // both palettes are measured with exact nearest-color mapping and no dithering, so only the palettes are compared
+    private static void printQuality(int[] pixelArray, int width, int height, QuantizationResult result, QuantizationOptions quantizationOptions)
+            throws IOException, InterruptedException {
+        QuantizationOptions fullImageOptions = quantizationOptions.copy().setSampleMethod(null).setReportQuality(false).setDither("none");
+        QuantizationResult fullImage = new QuantizationPipeline(fullImageOptions).quantize(pixelArray, width, height,
+                (numColors, palette, sinkWidth, sinkHeight) -> new DiscardingSink(), new QuantizationMetrics());
+        int[] paletteSizes = result.getPaletteSizes();
+        for (int i = 0; i < paletteSizes.length; i++) {
+            int[] palette = PaletteMapper.packPalette(result.getPalette(i));
+            int[] fullImagePalette = PaletteMapper.packPalette(fullImage.getPalette(i));
+            double psnr = ImageQuality.psnr(ImageQuality.meanSquaredError(pixelArray, palette, PaletteMapper.create("cache", palette)));
+            double fullImagePsnr = ImageQuality.psnr(ImageQuality.meanSquaredError(pixelArray, fullImagePalette, PaletteMapper.create("cache", fullImagePalette)));
+            String qualityPrint = String.format("| %3d colors PSNR: %6.2f dB (full image: %6.2f dB)  |", paletteSizes[i], psnr, fullImagePsnr);
+            System.out.println(qualityPrint);
+        }
+    }
 
-            // lines 172 - 192 assign each pixel in the original image to a color from the palette
-
-            // retrieves the color table
-            RGB[] palette = colorPaletteFinder.getColorPalette();
-            // allocate 2d array to contain color info relating pixels to color palette
-            int [][] condensedPixelArray = new int[height][width];
-            // loop through the original 2d pixel array
-            for (int h = 0; h < height; h++) {
-                for (int w = 0; w < width; w++) {
-                    // set starting index within the palette array of the minimum mean squared distance
-                    int minIndex = 0;
-                    // loop through the color palette to find the closest color for the current pixel
-                    for (i = 1; i < numColors; i++) {
-                        // checks if the min mean sqd distance of the current color in color palette is smaller than the current smallest found so far
-                        if (pixelArray[h][w].meanSqdDist(palette[i]) < pixelArray[h][w].meanSqdDist(palette[minIndex])) {
-                            // if smaller then changes the minIndex to be the current index in the color palette
-                            minIndex = i;
-                        }
-                    }
-                    // once the whole palette has been cycled through assigns the minimum sqd distance to the pixel location
-                    condensedPixelArray[h][w] = minIndex;
-                }
-            }
-
-            // specifies output file path
-            String outputFilePath = "./output/" + splitDimensions[0] + "_" + Integer.toString(numColors) + "colors.bmp";
+    // class object: a sink that drops the palette indices, for runs that only need the palettes
+    private static class DiscardingSink implements QuantizationSink {
+        @Override
+        public void writeRows(int firstRow, int rowCount, byte[] indices, int offset) {
+        }
 
-            //calls method to write data to the bmp file
-            BMPWriter outWriter = new BMPWriter(); 
-            outWriter.writeBMPFile(width, height, numColors, palette, condensedPixelArray, outputFilePath);
+        @Override
+        public void close() {
         }
     }
 }
@@ -6,96 +6,369 @@
  */
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
 
-public class BMPWriter {
-
-        // method to write .bmp format header and body
-        public void writeBMPFile(int width, int height, int numberOfColors, RGB[] colorPalette, int [][] compressedPixelArray, String outputFileName) throws IOException {
-
-            FileOutputStream os = new FileOutputStream(outputFileName);
-            DataOutputStream output = new DataOutputStream(os);
-    
-            try (output) {
-    
-                byte[] twoByteArray = new byte[2];
-                twoByteArray[0] = 'B';
-                twoByteArray[1] = 'M';
-                output.write(twoByteArray);
-    
-                int fileSize = width*height;
-                output.writeInt(fileSize);
-    
-                short zero = 0;
-                output.writeShort(Short.reverseBytes(zero));
-                output.writeShort(Short.reverseBytes(zero));
-    
-                // 54 bytes in the first and second part of the header + the number of bytes in the color table
-                int offsetToPixelData = 54 + numberOfColors * 4;
-                output.writeInt(Integer.reverseBytes(offsetToPixelData));
-    
-                int headerSize = 40;
-                output.writeInt(Integer.reverseBytes(headerSize));
-    
-                // width
-                output.writeInt(Integer.reverseBytes(width));
-    
-                // height
-                output.writeInt(Integer.reverseBytes(height));
-    
-                short one = 1;
-                output.writeShort(Short.reverseBytes(one));
-    
-                short bitsPerChannel = 8;
-                output.writeShort(Short.reverseBytes(bitsPerChannel));
-    
-                int compressionType = 0;
-                output.writeInt(Integer.reverseBytes(compressionType));
-    
-                int compression = 0;
-                output.writeInt(Integer.reverseBytes(compression));
-    
-                // x resolution
-                output.writeInt(Integer.reverseBytes(width));
-    
-                // y resolution
-                output.writeInt(Integer.reverseBytes(height));
-    
-                // number of colors
-                output.writeInt(Integer.reverseBytes(numberOfColors));
-    
-                // number of significant colors
-                output.writeInt(Integer.reverseBytes(numberOfColors));
-    
-                //array of bytes to help build the color chart
-                byte[] fourBytes = new byte[4];
-    
-                for (int i = 0; i < numberOfColors; i++) {
-    
-                    //when you showed yours in class I think I remember seeing something like B, then G, then R. Im not sure
-                   fourBytes[0] = (byte) colorPalette[i].getB();
-                   fourBytes[1] = (byte) colorPalette[i].getG();
-                   fourBytes[2] = (byte) colorPalette[i].getR();
-                   fourBytes[3] = (byte) 0;
-                   output.write(fourBytes);
+// class object: an indexed color .bmp file that is open for writing
+// uncompressed rows have a fixed position in the file (BMP stores rows bottom-up, each padded to a multiple of 4 bytes),
+// so the header and color table are written when the file is opened and rows can be written as soon as they are mapped,
+// in any order, with no full copy of the image
+// compressed rows have no fixed position, and BMP does not allow a top-down compressed image, so every block of rows is
+// compressed as it arrives (its bottom row first) and kept until close, which writes the header and then the blocks from
+// the bottom of the image up; only the compressed image is held in memory
+public class BMPWriter implements QuantizationSink {
+
+    // names of the output formats
+    // packed: the fewest bits per pixel that hold the palette (1 for up to 2 colors, 4 for up to 16, otherwise 8)
+    // 8bit: 8 bits per pixel whatever the palette size (the original output)
+    // rle: run-length encoded, RLE4 for up to 16 colors and RLE8 otherwise; a run of one index is stored as a count and
+    //   the index, and a stretch without runs as literal indices
+    public static final String[] FORMATS = {"packed", "8bit", "rle"};
+
+    // 14 byte file header + 40 byte info header
+    private static final int HEADER_SIZE = 54;
+
+    // compression types of the info header
+    private static final int BI_RGB = 0;
+    private static final int BI_RLE8 = 1;
+    private static final int BI_RLE4 = 2;
+
+    private FileChannel channel;
+    private int width;
+    private int height;
+    private int bitsPerPixel;
+    private int compression;
+    private int rowStride; // bytes per uncompressed row in the file, including padding
+    private long pixelDataOffset;
+    private RGB[] colorPalette;
+
+    // reused buffer for the rows of one writeRows call, in file order
+    private ByteBuffer rowBuffer;
+
+    // compressed formats: each written block, in file order, by its first row; and the buffer blocks are compressed into
+    private TreeMap<Integer, byte[]> encodedBlocks;
+    private byte[] encodeBuffer;
+
+    // constructor: creates a packed file and writes the header and color table
+    public BMPWriter(String outputFileName, int width, int height, RGB[] colorPalette) throws IOException {
+        this(outputFileName, width, height, colorPalette, "packed", null);
+    }
+
+    // constructor for a file in one of FORMATS that writes rows through the given heap buffer (null to allocate one)
+    // writers used one after another on the same thread, such as the writers of every palette size of an image, can share
+    // one buffer; a buffer too small for a writeRows call is replaced by a larger one
+    public BMPWriter(String outputFileName, int width, int height, RGB[] colorPalette, String format, ByteBuffer rowBuffer) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be positive");
+        }
+        if (colorPalette.length > 256) {
+            throw new IllegalArgumentException("an indexed .bmp file holds at most 256 colors");
+        }
+        this.width = width;
+        this.height = height;
+        this.bitsPerPixel = bitsPerPixel(format, colorPalette.length);
+        this.compression = format.equals("rle") ? (bitsPerPixel == 4 ? BI_RLE4 : BI_RLE8) : BI_RGB;
+        this.rowStride = rowStride(width, bitsPerPixel);
+        this.colorPalette = colorPalette.clone();
+        this.rowBuffer = rowBuffer;
+        this.pixelDataOffset = HEADER_SIZE + 4L * colorPalette.length;
+        this.channel = FileChannel.open(Paths.get(outputFileName),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+
+        if (compression != BI_RGB) {
+            // the header needs the compressed size, so it is written on close
+            encodedBlocks = new TreeMap<>();
+            return;
+        }
+        try {
+            writeFully(buildHeader(width, height, bitsPerPixel, compression, (long) rowStride * height, colorPalette), 0);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    // method to get the bits per pixel a format uses for a palette size
+    public static int bitsPerPixel(String format, int numColors) {
+        switch (format) {
+            case "packed":
+                return numColors <= 2 ? 1 : numColors <= 16 ? 4 : 8;
+            case "8bit":
+                return 8;
+            case "rle":
+                return numColors <= 16 ? 4 : 8;
+            default:
+                throw new IllegalArgumentException("unknown .bmp format: " + format);
+        }
+    }
+
+    // method to get the bytes of an uncompressed row: the bits of its pixels, padded to a multiple of 4 bytes
+    private static int rowStride(int width, int bitsPerPixel) {
+        return (int) (((long) width * bitsPerPixel + 31) >>> 5 << 2);
+    }
+
+    // method to build the file header, info header and color table
+    private static ByteBuffer buildHeader(int width, int height, int bitsPerPixel, int compression, long imageSize, RGB[] colorPalette) {
+        int numberOfColors = colorPalette.length;
+        long pixelDataOffset = HEADER_SIZE + 4L * numberOfColors;
+        ByteBuffer header = ByteBuffer.allocate((int) pixelDataOffset).order(ByteOrder.LITTLE_ENDIAN);
+
+        // file header
+        header.put((byte) 'B').put((byte) 'M');
+        header.putInt((int) (pixelDataOffset + imageSize)); // file size
+        header.putShort((short) 0); // reserved
+        header.putShort((short) 0); // reserved
+        header.putInt((int) pixelDataOffset);
+
+        // info header
+        header.putInt(40); // info header size
+        header.putInt(width);
+        header.putInt(height);
+        header.putShort((short) 1); // planes
+        header.putShort((short) bitsPerPixel);
+        header.putInt(compression);
+        header.putInt((int) imageSize);
+        header.putInt(width); // x resolution
+        header.putInt(height); // y resolution
+        header.putInt(numberOfColors); // number of colors
+        header.putInt(numberOfColors); // number of significant colors
+
+        // color table, stored as B, G, R, 0
+        for (RGB color : colorPalette) {
+            header.put((byte) color.getB()).put((byte) color.getG()).put((byte) color.getR()).put((byte) 0);
+        }
+
+        header.flip();
+        return header;
+    }
+
+    // method to write consecutive rows of palette indices, packed row-major starting at offset (row 0 is the top)
+    // uncompressed rows are laid out bottom-up and padded in the buffer so they go to the file in a single write;
+    // compressed rows are encoded bottom-up into one block that is written on close
+    @Override
+    public void writeRows(int firstRow, int rowCount, byte[] indices, int offset) throws IOException {
+        if (firstRow < 0 || rowCount < 0 || firstRow + rowCount > height) {
+            throw new IllegalArgumentException("rows " + firstRow + " to " + (firstRow + rowCount - 1) + " are outside the image");
+        }
+        if (rowCount == 0) {
+            return;
+        }
+
+        if (compression != BI_RGB) {
+            int bound = rowCount * maxEncodedRow(width);
+            if (encodeBuffer == null || encodeBuffer.length < bound) {
+                encodeBuffer = new byte[bound];
+            }
+            int length = 0;
+            for (int r = rowCount - 1; r >= 0; r--) {
+                length = encodeRow(indices, offset + r * width, width, bitsPerPixel, encodeBuffer, length);
+            }
+            encodedBlocks.put(firstRow, Arrays.copyOf(encodeBuffer, length));
+            return;
+        }
+
+        int bytes = rowStride * rowCount;
+        if (rowBuffer == null || !rowBuffer.hasArray() || rowBuffer.capacity() < bytes) {
+            rowBuffer = ByteBuffer.allocate(bytes);
+        }
+        byte[] buffer = rowBuffer.array();
+        for (int r = rowCount - 1, position = 0; r >= 0; r--, position += rowStride) {
+            packRow(indices, offset + r * width, width, bitsPerPixel, buffer, position, rowStride);
+        }
+        rowBuffer.clear();
+        rowBuffer.limit(bytes);
+
+        // the last of the rows is the lowest in the file
+        int lastRow = firstRow + rowCount - 1;
+        writeFully(rowBuffer, pixelDataOffset + (long) (height - 1 - lastRow) * rowStride);
+    }
+
+    // method to pack one row of indices at the given bits per pixel (the leftmost pixel in the high bits of a byte) and
+    // zero the rest of the stride
+    private static void packRow(byte[] indices, int offset, int width, int bitsPerPixel, byte[] out, int outOffset, int stride) {
+        int o = outOffset;
+        if (bitsPerPixel == 8) {
+            System.arraycopy(indices, offset, out, o, width);
+            o += width;
+        } else if (bitsPerPixel == 4) {
+            int x = 0;
+            for (; x + 1 < width; x += 2) {
+                out[o++] = (byte) ((indices[offset + x] << 4) | (indices[offset + x + 1] & 0x0F));
+            }
+            if (x < width) {
+                out[o++] = (byte) (indices[offset + x] << 4);
+            }
+        } else {
+            int x = 0;
+            for (; x + 7 < width; x += 8) {
+                int bits = 0;
+                for (int k = 0; k < 8; k++) {
+                    bits = (bits << 1) | (indices[offset + x + k] & 1);
+                }
+                out[o++] = (byte) bits;
+            }
+            if (x < width) {
+                int bits = 0;
+                for (int k = x; k < width; k++) {
+                    bits = (bits << 1) | (indices[offset + k] & 1);
                 }
-    
-                byte [] bytePixelArray = new byte[width*height];
-                int bytePixelArrayIndex = 0;
-    
-                //writes the pixel info into a byte array to write to the file
-                for (int h = height - 1; h >= 0; h--) {
-                    for (int w = 0; w < width; w++) {
-    
-                        bytePixelArray[bytePixelArrayIndex] = (byte) compressedPixelArray[h][w];
-                        bytePixelArrayIndex ++;
-    
+                out[o++] = (byte) (bits << (8 - (width - x)));
+            }
+        }
+        Arrays.fill(out, o, outOffset + stride, (byte) 0);
+    }
+
+    // method to get the most bytes encodeRow can write for a row: 2 per pixel (the cost of a pixel stored as a single
+    // count, the worst case) plus the end of line
+    private static int maxEncodedRow(int width) {
+        return 2 * width + 2;
+    }
+
+    // method to run-length encode one row (RLE8, or RLE4 for 4 bits per pixel) followed by an end of line; returns the
+    // offset after it
+    // a run of at least 2 equal indices becomes a count and the index; a stretch with no runs becomes an absolute run (an
+    // escape, its length and the literal indices, padded to an even number of bytes), or single counts when shorter than 3
+    private static int encodeRow(byte[] indices, int offset, int width, int bitsPerPixel, byte[] out, int o) {
+        int end = offset + width;
+        int i = offset;
+        while (i < end) {
+            byte value = indices[i];
+            int run = 1;
+            while (i + run < end && run < 255 && indices[i + run] == value) {
+                run++;
+            }
+            if (run > 1) {
+                out[o++] = (byte) run;
+                out[o++] = bitsPerPixel == 4 ? (byte) ((value << 4) | value) : value;
+                i += run;
+                continue;
+            }
+
+            // the stretch ends where the next run of 2 starts
+            int j = i + 1;
+            while (j < end && j - i < 255 && !(j + 1 < end && indices[j] == indices[j + 1])) {
+                j++;
+            }
+            int literal = j - i;
+            if (literal < 3) {
+                for (int k = i; k < j; k++) {
+                    out[o++] = 1;
+                    out[o++] = bitsPerPixel == 4 ? (byte) (indices[k] << 4) : indices[k];
+                }
+            } else {
+                out[o++] = 0;
+                out[o++] = (byte) literal;
+                int start = o;
+                if (bitsPerPixel == 4) {
+                    int k = i;
+                    for (; k + 1 < j; k += 2) {
+                        out[o++] = (byte) ((indices[k] << 4) | (indices[k + 1] & 0x0F));
+                    }
+                    if (k < j) {
+                        out[o++] = (byte) (indices[k] << 4);
                     }
+                } else {
+                    System.arraycopy(indices, i, out, o, literal);
+                    o += literal;
+                }
+                if (((o - start) & 1) != 0) {
+                    out[o++] = 0;
+                }
+            }
+            i = j;
+        }
+        out[o++] = 0; // end of line
+        out[o++] = 0;
+        return o;
+    }
+
+    // method to write a whole buffer at a file position
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // closes the file; a compressed file gets its header and every block written first, the bottom of the image first
+    @Override
+    public void close() throws IOException {
+        try {
+            if (compression != BI_RGB) {
+                long imageSize = 2; // end of bitmap
+                for (byte[] block : encodedBlocks.values()) {
+                    imageSize += block.length;
                 }
-                output.write(bytePixelArray);
+                writeFully(buildHeader(width, height, bitsPerPixel, compression, imageSize, colorPalette), 0);
+                long position = pixelDataOffset;
+                for (byte[] block : encodedBlocks.descendingMap().values()) {
+                    writeFully(ByteBuffer.wrap(block), position);
+                    position += block.length;
+                }
+                writeFully(ByteBuffer.wrap(new byte[] {0, 1}), position);
+                encodedBlocks.clear();
             }
-            catch (IOException ex) {
-                ex.printStackTrace();
+        } finally {
+            channel.close();
+        }
+    }
+
+    // method to encode a whole row-major array of palette indices as the bytes of a .bmp file in one of FORMATS, in memory
+    public static byte[] encode(int width, int height, RGB[] colorPalette, byte[] indices, String format) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be positive");
+        }
+        if (colorPalette.length > 256) {
+            throw new IllegalArgumentException("an indexed .bmp file holds at most 256 colors");
+        }
+        if (indices.length < (long) width * height) {
+            throw new IllegalArgumentException("the index array is shorter than the image");
+        }
+        int bitsPerPixel = bitsPerPixel(format, colorPalette.length);
+        int headerSize = HEADER_SIZE + 4 * colorPalette.length;
+
+        if (format.equals("rle")) {
+            if ((long) height * maxEncodedRow(width) + 2 > Integer.MAX_VALUE - headerSize) {
+                throw new IllegalArgumentException("the image is too large to encode in memory");
+            }
+            byte[] pixelData = new byte[height * maxEncodedRow(width) + 2];
+            int length = 0;
+            for (int row = height - 1; row >= 0; row--) {
+                length = encodeRow(indices, row * width, width, bitsPerPixel, pixelData, length);
+            }
+            pixelData[length++] = 0; // end of bitmap
+            pixelData[length++] = 1;
+            byte[] file = new byte[headerSize + length];
+            buildHeader(width, height, bitsPerPixel, bitsPerPixel == 4 ? BI_RLE4 : BI_RLE8, length, colorPalette).get(file, 0, headerSize);
+            System.arraycopy(pixelData, 0, file, headerSize, length);
+            return file;
+        }
+
+        int rowStride = rowStride(width, bitsPerPixel);
+        byte[] file = new byte[headerSize + rowStride * height];
+        buildHeader(width, height, bitsPerPixel, BI_RGB, (long) rowStride * height, colorPalette).get(file, 0, headerSize);
+        for (int row = height - 1, position = headerSize; row >= 0; row--, position += rowStride) {
+            packRow(indices, row * width, width, bitsPerPixel, file, position, rowStride);
+        }
+        return file;
+    }
+
+    // method to write .bmp format header and body for a whole row-major array of palette indices, in one of FORMATS
+    public static void writeBMPFile(int width, int height, RGB[] colorPalette, byte[] compressedPixelArray, String outputFileName,
+            String format) throws IOException {
+        try (BMPWriter writer = new BMPWriter(outputFileName, width, height, colorPalette, format, null)) {
+            // a block of rows at a time so the padded copy stays small
+            int rowsPerBlock = Math.max(1, (1 << 20) / width);
+            for (int firstRow = 0; firstRow < height; firstRow += rowsPerBlock) {
+                int rowCount = Math.min(rowsPerBlock, height - firstRow);
+                writer.writeRows(firstRow, rowCount, compressedPixelArray, firstRow * width);
             }
-            output.close();
         }
+    }
+
+    // method to write a packed .bmp file for a whole row-major array of palette indices
+    public static void writeBMPFile(int width, int height, RGB[] colorPalette, byte[] compressedPixelArray, String outputFileName) throws IOException {
+        writeBMPFile(width, height, colorPalette, compressedPixelArray, outputFileName, "packed");
+    }
 }
@@ -0,0 +1,323 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * BatchRunner class
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// class object: quantizes many .raw files with the same options on a fixed pool of worker threads
+// the files come from a directory (every .raw file in it), a glob pattern (such as input/*_512x*.raw) or a manifest file
+// (one path per line; blank lines and lines starting with # are skipped)
+// before a file is handed to a worker, the memory its buffers need is reserved from a fixed budget; when the budget is used
+// up the next file waits until a running one finishes, so a large batch never holds more images in memory than fit
+// every file is quantized in isolation: a malformed or unreadable file is reported as failed and the run carries on
+// files are quantized in QuantizationWorkspaces handed from one file to the next, so a batch of same-sized files reuses
+// the same buffers instead of allocating new ones per file; an idle workspace keeps the budget its buffers take, and is
+// dropped when a file needs that budget or when its buffers outgrow its worker's share of the budget
+// Options:
+// --workers=N         number of files quantized at once (default: number of processors)
+// --memory-budget=MB  memory reserved for the buffers of the files in flight (default: half the maximum heap)
+public class BatchRunner {
+
+    private QuantizationOptions quantizationOptions;
+    private int workers;
+    private long memoryBudget; // in bytes
+    private PaletteCache paletteCache; // shared by the workers, null for none
+    private MetricsReport metricsReport; // null for none
+
+    // workspaces not in use by a worker, with the budget their buffers hold, the most recently used last
+    private final Deque<RetainedWorkspace> idleWorkspaces = new ArrayDeque<>();
+
+    // class object: a workspace and the budget permits (in KB) held for the buffers it keeps between files
+    private static class RetainedWorkspace {
+        final QuantizationWorkspace workspace = new QuantizationWorkspace();
+        int heldKB;
+    }
+
+    // constructor
+    public BatchRunner(QuantizationOptions quantizationOptions, int workers, long memoryBudget) {
+        if (workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+        if (memoryBudget < 1) {
+            throw new IllegalArgumentException("memory budget must be positive");
+        }
+        this.quantizationOptions = quantizationOptions;
+        this.workers = workers;
+        this.memoryBudget = memoryBudget;
+    }
+
+    // method to build a runner from the --workers and --memory-budget options
+    public static BatchRunner fromOptions(QuantizationOptions quantizationOptions, Map<String, String> options) {
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (options.containsKey("workers")) {
+            workers = QuantizationOptions.parsePositive(options.get("workers"), "--workers");
+        }
+        long memoryBudget = Runtime.getRuntime().maxMemory() / 2;
+        if (options.containsKey("memory-budget")) {
+            memoryBudget = QuantizationOptions.parsePositive(options.get("memory-budget"), "--memory-budget") * (1L << 20);
+        }
+        return new BatchRunner(quantizationOptions, workers, memoryBudget);
+    }
+
+    // method to share a palette cache between the files of the batch (null for none)
+    public void setPaletteCache(PaletteCache paletteCache) {
+        this.paletteCache = paletteCache;
+    }
+
+    // method to add the metrics of every file to a report (null for none)
+    public void setMetricsReport(MetricsReport metricsReport) {
+        this.metricsReport = metricsReport;
+    }
+
+    // method to quantize every file of a directory, glob pattern or manifest, printing a line per file and a summary
+    // returns the number of files that failed
+    public int run(String source) throws IOException, InterruptedException {
+        List<String> files = listFiles(source);
+        if (files.isEmpty()) {
+            System.out.println("No .raw files found for " + source + ".");
+            System.out.println();
+            return 0;
+        }
+
+        System.out.println(String.format("Quantizing %d files on %d workers (memory budget %d MB)", files.size(), workers, memoryBudget >> 20));
+        System.out.println();
+        System.out.println(String.format("%-40s %12s %10s %10s  %s", "file", "pixels", "ms", "MP/s", "result"));
+
+        // the budget is counted in KB so it fits the permits of a semaphore
+        int budgetKB = (int) Math.min(Integer.MAX_VALUE, Math.max(1, memoryBudget >> 10));
+        Semaphore memoryPermits = new Semaphore(budgetKB);
+        int shareKB = budgetKB / workers;
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<Long>> results = new ArrayList<>();
+
+        long startTime = System.nanoTime();
+        try {
+            for (String file : files) {
+                // the file name is checked up front so its memory need is known; a bad name fails only this file
+                RawImageReader reader;
+                try {
+                    reader = RawImageReader.forFile(file);
+                } catch (IllegalArgumentException e) {
+                    report(file, 0, 0, e);
+                    results.add(CompletableFuture.completedFuture(-1L));
+                    continue;
+                }
+
+                // a file bigger than the whole budget runs on its own instead of waiting forever
+                int neededKB = (int) Math.min(budgetKB, Math.max(1, estimateBytes(reader) >> 10));
+                reserve(memoryPermits, neededKB);
+                try {
+                    results.add(pool.submit(() -> quantize(reader, memoryPermits, neededKB, shareKB)));
+                } catch (RejectedExecutionException e) {
+                    memoryPermits.release(neededKB);
+                    throw e;
+                }
+            }
+
+            int failed = 0;
+            long totalPixels = 0;
+            for (Future<Long> result : results) {
+                long pixels;
+                try {
+                    pixels = result.get();
+                } catch (ExecutionException e) {
+                    pixels = -1;
+                }
+                if (pixels < 0) {
+                    failed++;
+                } else {
+                    totalPixels += pixels;
+                }
+            }
+            long timeElapsed = System.nanoTime() - startTime;
+
+            // aggregate throughput over the wall time of the whole batch
+            System.out.println();
+            System.out.println(String.format("Files quantized: %d, failed: %d", files.size() - failed, failed));
+            System.out.println(String.format("Total pixels: %d in %d ms (%.2f MP/s)", totalPixels, timeElapsed / 1000000,
+                    megapixelsPerSecond(totalPixels, timeElapsed)));
+            if (paletteCache != null) {
+                System.out.println(paletteCache.getSummary());
+            }
+            System.out.println();
+            return failed;
+        } finally {
+            pool.shutdownNow();
+            synchronized (idleWorkspaces) {
+                idleWorkspaces.clear();
+            }
+        }
+    }
+
+    // method to reserve the budget of a file, dropping idle workspaces (oldest first) to free the budget they hold
+    // while the file does not fit; with none idle it waits for a running file to finish
+    private void reserve(Semaphore memoryPermits, int neededKB) throws InterruptedException {
+        while (!memoryPermits.tryAcquire(neededKB)) {
+            RetainedWorkspace idle;
+            synchronized (idleWorkspaces) {
+                idle = idleWorkspaces.pollFirst();
+            }
+            if (idle != null) {
+                memoryPermits.release(idle.heldKB);
+            } else if (memoryPermits.tryAcquire(neededKB, 10, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        }
+    }
+
+    // method run on a worker: quantizes one file in an idle workspace (or a new one), then keeps the workspace and the
+    // budget of its buffers for a later file if they fit its share of the budget, and releases the rest of the budget
+    private long quantize(RawImageReader reader, Semaphore memoryPermits, int neededKB, int shareKB) {
+        RetainedWorkspace retained;
+        synchronized (idleWorkspaces) {
+            retained = idleWorkspaces.pollLast();
+        }
+        if (retained == null) {
+            retained = new RetainedWorkspace();
+        }
+        // the buffers the workspace already holds are reused by the file, so that part of its reservation is returned
+        int coveredKB = Math.min(retained.heldKB, neededKB);
+        memoryPermits.release(coveredKB);
+        int heldKB = retained.heldKB + neededKB - coveredKB;
+        try {
+            return quantize(reader, retained.workspace);
+        } finally {
+            int keptKB = (int) Math.min(Integer.MAX_VALUE, (retained.workspace.getRetainedBytes() + 1023) >> 10);
+            if (keptKB > Math.min(heldKB, shareKB)) {
+                keptKB = 0;
+            } else {
+                retained.heldKB = keptKB;
+                synchronized (idleWorkspaces) {
+                    idleWorkspaces.addLast(retained);
+                }
+            }
+            memoryPermits.release(heldKB - keptKB);
+        }
+    }
+
+    // method to quantize one file and report it; returns the pixel count, or -1 if the file failed
+    private long quantize(RawImageReader reader, QuantizationWorkspace workspace) {
+        long startTime = System.nanoTime();
+        try {
+            QuantizationMetrics metrics = new QuantizationMetrics();
+            long pixels = App.quantizeFile(reader, null, quantizationOptions, paletteCache, workspace, metrics, false);
+            if (metricsReport != null) {
+                metricsReport.add(reader.getPath(), metrics);
+            }
+            report(reader.getPath(), pixels, System.nanoTime() - startTime, null);
+            return pixels;
+        } catch (Exception | OutOfMemoryError e) {
+            report(reader.getPath(), 0, System.nanoTime() - startTime, e);
+            return -1;
+        }
+    }
+
+    // method to print the line of one file
+    private static synchronized void report(String file, long pixels, long nanos, Throwable failure) {
+        String name = file.substring(file.lastIndexOf('/') + 1);
+        String result = failure == null ? "OK" : "FAILED: " + failure.toString().replace('\n', ' ');
+        System.out.println(String.format("%-40s %12d %10d %10.2f  %s", name, pixels, nanos / 1000000, megapixelsPerSecond(pixels, nanos), result));
+    }
+
+    private static double megapixelsPerSecond(long pixels, long nanos) {
+        return nanos == 0 ? 0 : pixels * 1000.0 / nanos;
+    }
+
+    // method to estimate the memory quantizing a file needs: the pixels, the copy median cut reorders (or the histogram or
+    // sample) with the scratch arrays of its ColorReducer, and the original positions and box assignments for direct
+    // mapping; when streaming, a chunk and the palette source
+    long estimateBytes(RawImageReader reader) {
+        long pixels = (long) reader.getWidth() * reader.getHeight();
+        if (quantizationOptions.isStreaming()) {
+            // a chunk of rows as pixels and as file bytes, and the histogram or sample the palette comes from
+            long chunkPixels = (long) reader.getWidth() * QuantizationPipeline.rowsPerChunk(reader.getWidth(), reader.getHeight());
+            long sourceBytes = quantizationOptions.getSampleMethod() != null ? 4L * quantizationOptions.getSampleBudget() : 0;
+            if (quantizationOptions.getHistogramBits() != 0) {
+                sourceBytes += histogramBytes(pixels, quantizationOptions.getHistogramBits());
+            }
+            return 7 * chunkPixels + sourceBytes;
+        }
+        long bytes = 4 * pixels;
+        long entries = pixels;
+        if (quantizationOptions.getSampleMethod() != null) {
+            entries = Math.min(pixels, quantizationOptions.getSampleBudget());
+        }
+        if (quantizationOptions.getHistogramBits() == 0) {
+            // the entries and the reducer's sorting scratch
+            bytes += 8 * entries;
+        } else {
+            bytes += histogramBytes(entries, quantizationOptions.getHistogramBits());
+        }
+        if (quantizationOptions.isDirectMapping()) {
+            // the positions and the reducer's scratch for them, the box of each pixel and the indices
+            bytes += 8 * pixels + 2 * pixels;
+        }
+        if (!quantizationOptions.getColorSpace().equals("rgb")) {
+            // the pixels converted into the color space
+            bytes += 4 * pixels;
+        }
+        return bytes;
+    }
+
+    // method to estimate the memory of a histogram of the given number of pixels with median cut running over it: the table
+    // of long counts (dense, or a hash table of int keys at most half full), its bins copied out as int colors and long
+    // counts, and the reducer's scratch for both
+    private static long histogramBytes(long pixels, int bitsPerChannel) {
+        long bins = Math.min(pixels, 1L << (3 * bitsPerChannel));
+        long tableBytes = bitsPerChannel == 8 ? 2 * 12 * bins : 8L << (3 * bitsPerChannel);
+        return tableBytes + 2 * 12 * bins;
+    }
+
+    // method to list the files of a directory, glob pattern or manifest, in sorted order (manifests keep their own order)
+    static List<String> listFiles(String source) throws IOException {
+        List<String> files = new ArrayList<>();
+        Path sourcePath;
+        try {
+            sourcePath = Paths.get(source);
+        } catch (InvalidPathException e) {
+            sourcePath = null;
+        }
+
+        if (sourcePath != null && Files.isDirectory(sourcePath)) {
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(sourcePath, "*.raw")) {
+                for (Path entry : entries) {
+                    files.add(entry.toString());
+                }
+            }
+            Collections.sort(files);
+        } else if (sourcePath != null && Files.isRegularFile(sourcePath) && !source.endsWith(".raw")) {
+            // manifest: relative paths are taken relative to the manifest's directory
+            Path baseDirectory = sourcePath.toAbsolutePath().getParent();
+            for (String line : Files.readAllLines(sourcePath)) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                files.add(baseDirectory.resolve(line).normalize().toString());
+            }
+        } else {
+            // glob pattern: the directory part is listed and the file name part is matched
+            int lastSlash = source.lastIndexOf('/');
+            Path directory = Paths.get(lastSlash < 0 ? "." : source.substring(0, lastSlash + 1));
+            String pattern = source.substring(lastSlash + 1);
+            if (Files.isDirectory(directory)) {
+                PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+                try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                    for (Path entry : entries) {
+                        if (matcher.matches(entry.getFileName())) {
+                            files.add(entry.toString());
+                        }
+                    }
+                }
+            }
+            Collections.sort(files);
+        }
+        return files;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * BoxStats class
+ */
+
+// class object: the statistics of one median cut box, gathered in a single pass over its entries
+// keeps the min, max and sum of every channel, the pixel count (a histogram bin counts as its weight) and the sum of
+// squared channel values, so the box's bounds, widest channel, representative color and squared error all come from
+// one scan; stats of separately scanned pieces of a box are merged with combine
+public class BoxStats {
+
+    private int minR = 255, maxR = 0, minG = 255, maxG = 0, minB = 255, maxB = 0;
+    private long count;
+    private long sumR, sumG, sumB;
+    private long sumSquares;
+    private boolean hasSums = true; // false for stats from boundsOf, which have no sums
+
+    // method to measure the entries between (inclusive) the start and end indices; weights may be null
+    // the running values are kept in local variables rather than fields so the loop runs in registers
+    public static BoxStats of(int[] pixels, long[] weights, int startIndex, int endIndex) {
+        BoxStats stats = new BoxStats();
+        if (weights != null) {
+            for (int i = startIndex; i <= endIndex; i++) {
+                stats.add(pixels[i], weights[i]);
+            }
+            return stats;
+        }
+        int minR = 255, maxR = 0, minG = 255, maxG = 0, minB = 255, maxB = 0;
+        long sumR = 0, sumG = 0, sumB = 0, sumSquares = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            int pixel = pixels[i];
+            int R = (pixel >> 16) & 0xFF;
+            int G = (pixel >> 8) & 0xFF;
+            int B = pixel & 0xFF;
+            minR = Math.min(minR, R);
+            maxR = Math.max(maxR, R);
+            minG = Math.min(minG, G);
+            maxG = Math.max(maxG, G);
+            minB = Math.min(minB, B);
+            maxB = Math.max(maxB, B);
+            sumR += R;
+            sumG += G;
+            sumB += B;
+            sumSquares += R * R + G * G + B * B;
+        }
+        stats.setBounds(minR, maxR, minG, maxG, minB, maxB);
+        stats.count = Math.max(0, endIndex - startIndex + 1);
+        stats.sumR = sumR;
+        stats.sumG = sumG;
+        stats.sumB = sumB;
+        stats.sumSquares = sumSquares;
+        return stats;
+    }
+
+    // method to measure only the bounds and pixel count of the entries between (inclusive) the start and end indices
+    // about a third faster than of() on raw pixels, for when neither the mean color nor the squared error is needed
+    public static BoxStats boundsOf(int[] pixels, long[] weights, int startIndex, int endIndex) {
+        int minR = 255, maxR = 0, minG = 255, maxG = 0, minB = 255, maxB = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            int pixel = pixels[i];
+            int R = (pixel >> 16) & 0xFF;
+            int G = (pixel >> 8) & 0xFF;
+            int B = pixel & 0xFF;
+            minR = Math.min(minR, R);
+            maxR = Math.max(maxR, R);
+            minG = Math.min(minG, G);
+            maxG = Math.max(maxG, G);
+            minB = Math.min(minB, B);
+            maxB = Math.max(maxB, B);
+        }
+        BoxStats stats = new BoxStats();
+        stats.setBounds(minR, maxR, minG, maxG, minB, maxB);
+        if (weights == null) {
+            stats.count = Math.max(0, endIndex - startIndex + 1);
+        } else {
+            for (int i = startIndex; i <= endIndex; i++) {
+                stats.count += weights[i];
+            }
+        }
+        stats.hasSums = false;
+        return stats;
+    }
+
+    private void setBounds(int minR, int maxR, int minG, int maxG, int minB, int maxB) {
+        this.minR = minR;
+        this.maxR = maxR;
+        this.minG = minG;
+        this.maxG = maxG;
+        this.minB = minB;
+        this.maxB = maxB;
+    }
+
+    // method to add one packed pixel counted the given number of times
+    public void add(int pixel, long weight) {
+        int R = (pixel >> 16) & 0xFF;
+        int G = (pixel >> 8) & 0xFF;
+        int B = pixel & 0xFF;
+        minR = Math.min(minR, R);
+        maxR = Math.max(maxR, R);
+        minG = Math.min(minG, G);
+        maxG = Math.max(maxG, G);
+        minB = Math.min(minB, B);
+        maxB = Math.max(maxB, B);
+        count += weight;
+        sumR += weight * R;
+        sumG += weight * G;
+        sumB += weight * B;
+        sumSquares += weight * (R * R + G * G + B * B);
+    }
+
+    // method to merge the stats of another piece of the same box into this one
+    public void combine(BoxStats other) {
+        minR = Math.min(minR, other.minR);
+        maxR = Math.max(maxR, other.maxR);
+        minG = Math.min(minG, other.minG);
+        maxG = Math.max(maxG, other.maxG);
+        minB = Math.min(minB, other.minB);
+        maxB = Math.max(maxB, other.maxB);
+        count += other.count;
+        sumR += other.sumR;
+        sumG += other.sumG;
+        sumB += other.sumB;
+        sumSquares += other.sumSquares;
+        hasSums &= other.hasSums;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    // method to get the number of pixels in the box
+    public long getCount() {
+        return count;
+    }
+
+    // method to get {minR, maxR, minG, maxG, minB, maxB}
+    public int[] getBounds() {
+        return new int[] {minR, maxR, minG, maxG, minB, maxB};
+    }
+
+    // method to get the widest range of any channel
+    public int getWidestRange() {
+        return Math.max(maxR - minR, Math.max(maxG - minG, maxB - minB));
+    }
+
+    // method to get the channel with the largest range (ties go to R, then G)
+    public char getLargestRangeChannel() {
+        return ColorReducer.largestRange(maxR - minR, maxG - minG, maxB - minB);
+    }
+
+    // method to get the sum of squared distances of the box's pixels from its mean color
+    public double getSquaredError() {
+        checkSums();
+        if (count == 0) {
+            return 0;
+        }
+        return sumSquares - ((double) sumR * sumR + (double) sumG * sumG + (double) sumB * sumB) / count;
+    }
+
+    // method to get the center of the box's bounds (the color the original algorithm uses)
+    public RGB getMidpointColor() {
+        return new RGB((minR + maxR) / 2, (minG + maxG) / 2, (minB + maxB) / 2);
+    }
+
+    // method to get the mean color of the box's pixels, rounded to the nearest value
+    public RGB getMeanColor() {
+        checkSums();
+        if (count == 0) {
+            return new RGB(0, 0, 0);
+        }
+        return new RGB((int) ((sumR + count / 2) / count), (int) ((sumG + count / 2) / count), (int) ((sumB + count / 2) / count));
+    }
+
+    private void checkSums() {
+        if (!hasSums) {
+            throw new IllegalStateException("these stats were measured without sums (see boundsOf)");
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * BoxTreePaletteMapper class
+ */
+
+// class object: maps pixels with the split tree median cut built while finding the palette, instead of searching the palette
+// without refinement a pixel gets the color of the box it falls into, found by walking down the tree in O(log colors)
+// with refinement the walk is followed by a branch and bound search of the neighboring boxes, giving the exact
+// nearest color (same result as the exhaustive search) while only visiting boxes that could hold a closer color
+// thread-safe once constructed
+public class BoxTreePaletteMapper implements PaletteMapper {
+
+    private SplitTree tree;
+    private int[] palette;
+    private boolean exact;
+
+    // palette slots not reached by any leaf (filled out with black); the exact search checks them separately
+    private int[] orphanSlots;
+
+    // constructor
+    public BoxTreePaletteMapper(SplitTree tree, int[] palette, boolean exact) {
+        this.tree = tree;
+        this.palette = palette.clone();
+        this.exact = exact;
+
+        boolean[] reached = new boolean[palette.length];
+        int reachedCount = 0;
+        for (int node = 0; node < tree.getCapacity(); node++) {
+            if (tree.isLeaf(node) && !reached[tree.getPaletteSlot(node)]) {
+                reached[tree.getPaletteSlot(node)] = true;
+                reachedCount++;
+            }
+        }
+        orphanSlots = new int[palette.length - reachedCount];
+        int next = 0;
+        for (int slot = 0; slot < palette.length; slot++) {
+            if (!reached[slot]) {
+                orphanSlots[next++] = slot;
+            }
+        }
+    }
+
+    @Override
+    public int mapPixel(int pixel) {
+        if (!exact) {
+            return tree.findPaletteSlot(pixel);
+        }
+        // the best match so far is packed as (distance << 32) | palette index, so comparing the longs
+        // prefers the smaller distance and then the lower index, the same tie rule as the exhaustive search
+        long best = Long.MAX_VALUE;
+        for (int slot : orphanSlots) {
+            best = Math.min(best, ((long) RGB.meanSqdDist(pixel, palette[slot]) << 32) | slot);
+        }
+        return (int) search(tree.getRoot(), pixel, best);
+    }
+
+    // recursive method to search a subtree, visiting the child on the pixel's side of the split first
+    // every palette color lies inside its box, so the distance from the pixel to the splitting plane is a lower bound for
+    // the whole other child, which is skipped only when that bound is strictly larger than the best distance so far
+    private long search(int node, int pixel, long best) {
+        if (node < 0) {
+            return best;
+        }
+        if (tree.isLeaf(node)) {
+            int slot = tree.getPaletteSlot(node);
+            return Math.min(best, ((long) RGB.meanSqdDist(pixel, palette[slot]) << 32) | slot);
+        }
+        int diff = ((pixel >> tree.getSplitShift(node)) & 0xFF) - tree.getThreshold(node);
+        int near = diff <= 0 ? tree.getLeftChild(node) : tree.getRightChild(node);
+        int far = diff <= 0 ? tree.getRightChild(node) : tree.getLeftChild(node);
+        best = search(near, pixel, best);
+        if ((long) diff * diff <= (best >>> 32)) {
+            best = search(far, pixel, best);
+        }
+        return best;
+    }
+
+    @Override
+    public boolean isExact() {
+        return exact;
+    }
+}
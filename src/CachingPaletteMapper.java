@@ -0,0 +1,62 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * CachingPaletteMapper class
+ */
+
+// class object: remembers the palette index of recently seen 24-bit colors in front of another mapper
+// photos repeat the same colors many times, so most pixels are answered by one table lookup
+// the cache is direct-mapped with a fixed number of entries, so its memory does not grow with the image
+// not thread-safe: use one instance per thread
+public class CachingPaletteMapper implements PaletteMapper {
+
+    private static final int CACHE_BITS = 16;
+
+    private PaletteMapper delegate;
+
+    // each entry holds (1 << 32) | (color << 8) | palette index, 0 marks an empty entry
+    private long[] entries;
+
+    private long hits;
+    private long misses;
+
+    // constructor
+    public CachingPaletteMapper(PaletteMapper delegate) {
+        this.delegate = delegate;
+        this.entries = new long[1 << CACHE_BITS];
+    }
+
+    @Override
+    public int mapPixel(int pixel) {
+        int color = pixel & 0xFFFFFF;
+        int slot = (color * 0x9E3779B1) >>> (32 - CACHE_BITS);
+        long entry = entries[slot];
+        if (entry != 0 && ((int) entry >>> 8) == color) {
+            hits++;
+            return (int) entry & 0xFF;
+        }
+        misses++;
+        int index = delegate.mapPixel(color);
+        entries[slot] = (1L << 32) | ((long) color << 8) | index;
+        return index;
+    }
+
+    @Override
+    public boolean isExact() {
+        return delegate.isExact();
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * ColorHistogram class
+ */
+
+// class object: counts how many pixels fall on each color so median cut can work on distinct colors instead of raw pixels
+// with 8 bits per channel every distinct 24-bit color is its own bin (exact)
+// with fewer bits per channel (5 or 6) the low bits are dropped, so the number of bins is bounded at 2^15 or 2^18
+// no matter how large the image is
+// counts are longs, so a bin of a multi-gigapixel image streamed through add() never wraps
+public class ColorHistogram {
+
+    private int bitsPerChannel; // number of bits kept from each 8-bit channel (8 means exact)
+
+    // quantized mode: dense table with one counter per bin
+    private long[] binCounts;
+
+    // exact mode: open addressing hash table from color to count
+    // keys are stored with bit 24 set so that an empty slot (0) never matches black
+    private int[] hashKeys;
+    private long[] hashCounts;
+    private int hashSize;
+
+    // constructor
+    public ColorHistogram(int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("bits per channel must be between 1 and 8");
+        }
+        this.bitsPerChannel = bitsPerChannel;
+        if (bitsPerChannel == 8) {
+            hashKeys = new int[1 << 12];
+            hashCounts = new long[1 << 12];
+            hashSize = 0;
+        } else {
+            binCounts = new long[1 << (3 * bitsPerChannel)];
+        }
+    }
+
+    // method to build a histogram of a whole pixel array in one call
+    public static ColorHistogram of(int[] pixels, int bitsPerChannel) {
+        ColorHistogram histogram = new ColorHistogram(bitsPerChannel);
+        histogram.add(pixels, 0, pixels.length);
+        return histogram;
+    }
+
+    public int getBitsPerChannel() {
+        return bitsPerChannel;
+    }
+
+    public boolean isExact() {
+        return bitsPerChannel == 8;
+    }
+
+    // method to add a run of packed pixels to the histogram (can be called repeatedly, e.g. once per row)
+    public void add(int[] pixels, int offset, int length) {
+        if (binCounts != null) {
+            int drop = 8 - bitsPerChannel;
+            int bits = bitsPerChannel;
+            for (int i = offset; i < offset + length; i++) {
+                binCounts[binIndex(pixels[i], drop, bits)]++;
+            }
+        } else {
+            for (int i = offset; i < offset + length; i++) {
+                addExact(pixels[i] & 0xFFFFFF, 1);
+            }
+        }
+    }
+
+    // method to find the number of non-empty bins
+    public int getDistinctColors() {
+        if (binCounts == null) {
+            return hashSize;
+        }
+        int distinct = 0;
+        for (long count : binCounts) {
+            if (count != 0) {
+                distinct++;
+            }
+        }
+        return distinct;
+    }
+
+    // method to get the packed color of each non-empty bin (the center of the bin in quantized mode)
+    // the order matches getCounts()
+    public int[] getColors() {
+        int[] colors = new int[getDistinctColors()];
+        fill(colors, null);
+        return colors;
+    }
+
+    // method to get the pixel count of each non-empty bin, in the same order as getColors()
+    public long[] getCounts() {
+        long[] counts = new long[getDistinctColors()];
+        fill(null, counts);
+        return counts;
+    }
+
+    // method to copy the non-empty bins out in a fixed order (ascending bin index or ascending color)
+    private void fill(int[] colors, long[] counts) {
+        int next = 0;
+        if (binCounts != null) {
+            int bits = bitsPerChannel;
+            int drop = 8 - bits;
+            int half = drop > 0 ? 1 << (drop - 1) : 0;
+            int mask = (1 << bits) - 1;
+            for (int bin = 0; bin < binCounts.length; bin++) {
+                if (binCounts[bin] == 0) {
+                    continue;
+                }
+                if (colors != null) {
+                    int R = (((bin >> (2 * bits)) & mask) << drop) | half;
+                    int G = (((bin >> bits) & mask) << drop) | half;
+                    int B = ((bin & mask) << drop) | half;
+                    colors[next] = RGB.pack(R, G, B);
+                }
+                if (counts != null) {
+                    counts[next] = binCounts[bin];
+                }
+                next++;
+            }
+        } else {
+            // sort the occupied slots by color so the output does not depend on the hash table layout
+            // (the color and slot are packed into one long, so sorting the longs sorts the slots by color)
+            long[] entries = new long[hashSize];
+            for (int slot = 0; slot < hashKeys.length; slot++) {
+                if (hashKeys[slot] != 0) {
+                    entries[next++] = ((long) (hashKeys[slot] & 0xFFFFFF) << 32) | slot;
+                }
+            }
+            java.util.Arrays.sort(entries);
+            for (int i = 0; i < entries.length; i++) {
+                if (colors != null) {
+                    colors[i] = (int) (entries[i] >>> 32);
+                }
+                if (counts != null) {
+                    counts[i] = hashCounts[(int) entries[i]];
+                }
+            }
+        }
+    }
+
+    // method to compute the bin of a packed pixel by keeping the top bits of each channel
+    private static int binIndex(int pixel, int drop, int bits) {
+        int R = ((pixel >> 16) & 0xFF) >> drop;
+        int G = ((pixel >> 8) & 0xFF) >> drop;
+        int B = (pixel & 0xFF) >> drop;
+        return (R << (2 * bits)) | (G << bits) | B;
+    }
+
+    // method to add a count to one color in the exact hash table, growing the table when it is half full
+    private void addExact(int color, long count) {
+        int key = color | 0x1000000;
+        int mask = hashKeys.length - 1;
+        int slot = hash(color) & mask;
+        while (hashKeys[slot] != 0) {
+            if (hashKeys[slot] == key) {
+                hashCounts[slot] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        hashKeys[slot] = key;
+        hashCounts[slot] = count;
+        hashSize++;
+        if (hashSize * 2 > hashKeys.length) {
+            grow();
+        }
+    }
+
+    // method to double the size of the exact hash table
+    private void grow() {
+        int[] oldKeys = hashKeys;
+        long[] oldCounts = hashCounts;
+        hashKeys = new int[oldKeys.length * 2];
+        hashCounts = new long[oldCounts.length * 2];
+        hashSize = 0;
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != 0) {
+                addExact(oldKeys[slot] & 0xFFFFFF, oldCounts[slot]);
+            }
+        }
+    }
+
+    // integer mixing function so that neighboring colors spread over the table
+    private static int hash(int color) {
+        int h = color * 0x9E3779B1;
+        return h ^ (h >>> 15);
+    }
+}
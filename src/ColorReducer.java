@@ -5,77 +5,479 @@
  * ColorReducer class
  */
 
-// class object: takes in an array of pixels as RGB class objects and an integer for the number of colors desired in the final color palette
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.IntConsumer;
+
+// class object: takes in an array of pixels packed as 0xRRGGBB ints and an integer for the number of colors desired in the final color palette
+// note: the pixel array is reordered in place, so callers that still need the original pixel order should pass in a copy
+// alternatively takes a ColorHistogram, in which case the cut runs over the weighted histogram bins instead of the raw pixels
 public class ColorReducer {
 
-    // primary and secondary array of pixel values from raw image; secondary is necessary for merge sort implementation
-    private RGB[] RGBArray;
-    private RGB[] secondaryRGBArray;
+    // primary and secondary array of pixel values from raw image (or histogram bin colors); secondary is the scratch space for sorting
+    private int[] RGBArray;
+    private int[] secondaryRGBArray;
+
+    // number of entries of RGBArray being cut; the arrays may be longer when they are reused scratch buffers (see reset)
+    private int entryCount;
+
+    // pixel count of each entry of RGBArray in histogram mode; null when every entry is a single pixel
+    private long[] weights;
+    private long[] secondaryWeights;
+
+    // optional original pixel index of each entry of RGBArray, reordered along with it (see setPixelPositions)
+    private int[] positions;
+    private int[] secondaryPositions;
+
+    // palette slot of the leaf box each original pixel ended up in; only filled when positions are tracked
+    private byte[] pixelBoxes;
+
+    // the box tree of the last medianCut call, and its depth
+    private SplitTree splitTree;
+    private int treeDepth;
+
+    // how boxes are chosen for splitting (see SPLIT_ORDERS) and which color stands for a box (see BOX_COLORS)
+    private String splitOrder = "balanced";
+    private String boxColor = "midpoint";
+
+    // the color of every box of the split tree, leaves and inner nodes, so smaller palettes can be read off the tree
+    private RGB[] nodeColors;
+
+    // for the priority orders: the split that created each node (-1 for the root) and the split that split it
+    // (Integer.MAX_VALUE for a leaf); splits are numbered from 0 in the order they were made
+    private int[] nodeCreatedAt;
+    private int[] nodeSplitAt;
 
     // 
     private RGB[] colorPalette;
-    private int paletteIndex; //keeps track of where in the color palette the program should be adding coloras
-    private int numberOfColors; //the number of colors given in the command line (will be power of 2)
+    private int paletteIndex; //number of palette slots filled by a box (the rest are filled out with black)
+    private int numberOfColors; //the number of colors given in the command line (any size; the tree is cut to the next power of 2)
+
+    // number of worker threads for the fork/join version of medianCut (1 runs the plain recursive version)
+    private int parallelism = 1;
+
+    // boxes with fewer entries than this are cut sequentially inside a single fork/join task
+    private static final int PARALLEL_BOX_THRESHOLD = 1 << 15;
+
+    // fork/join pools by parallelism, kept for the life of the program and shared by every reducer (a pool's idle
+    // threads exit on their own, so a kept pool costs nothing while unused)
+    private static final Map<Integer, ForkJoinPool> POOLS = new ConcurrentHashMap<>();
+
+    // names accepted by setSplitOrder
+    // balanced: every box is split the same number of times, down to the next power of 2 boxes (the original algorithm)
+    // range: the box with the largest pixel count times widest channel range is split next, until the palette is full
+    // variance: the box with the largest sum of squared distances from its mean color is split next
+    public static final String[] SPLIT_ORDERS = {"balanced", "range", "variance"};
+
+    // names accepted by setBoxColor
+    // midpoint: the center of the box's channel bounds (the original algorithm)
+    // mean: the mean color of the box's pixels, which follows where the pixels actually are
+    public static final String[] BOX_COLORS = {"midpoint", "mean"};
+
+    // class object: a box waiting in the priority queue, with the statistics measured when it was created
+    private static class Box {
+        int startIndex;
+        int endIndex;
+        int node;
+        BoxStats stats;
+        double priority;
+    }
 
     // constructor
-    public ColorReducer(RGB[] container, int numberOfColors) {
+    public ColorReducer(int[] container, int numberOfColors) {
+        reset(container, container.length, numberOfColors);
+    }
+
+    // constructor for histogram mode: the boxes hold histogram bins and are split at the weighted median
+    public ColorReducer(ColorHistogram histogram, int numberOfColors) {
+        reset(histogram, numberOfColors);
+    }
+
+    // method to get the reducer ready for another image or palette size, keeping its scratch arrays
+    // the first length entries of the container are cut; the scratch arrays only ever grow, so cutting images no larger
+    // than one cut before allocates nothing the size of the image
+    // the parallelism, split order and box color are kept; pixel positions are not (see setPixelPositions)
+    public void reset(int[] container, int length, int numberOfColors) {
+        if (length < 0 || length > container.length) {
+            throw new IllegalArgumentException("length must be between 0 and the length of the container");
+        }
         this.RGBArray = container;
-        secondaryRGBArray = new RGB[this.RGBArray.length];
+        this.entryCount = length;
+        if (secondaryRGBArray == null || secondaryRGBArray.length < length) {
+            secondaryRGBArray = new int[length];
+        }
+        this.weights = null;
+        this.positions = null;
         this.numberOfColors = numberOfColors;
         this.colorPalette = new RGB[numberOfColors];
         this.paletteIndex = 0;
+        this.splitTree = null;
+        this.treeDepth = 0;
+        this.nodeColors = null;
+        this.nodeCreatedAt = null;
+        this.nodeSplitAt = null;
+    }
+
+    // method to get the reducer ready for the bins of another histogram (see reset above)
+    public void reset(ColorHistogram histogram, int numberOfColors) {
+        int[] colors = histogram.getColors();
+        reset(colors, colors.length, numberOfColors);
+        this.weights = histogram.getCounts();
+        if (secondaryWeights == null || secondaryWeights.length < weights.length) {
+            secondaryWeights = new long[weights.length];
+        }
     }
         
+    // method to get the size of the scratch arrays the reducer keeps between cuts, in bytes
+    public long getScratchBytes() {
+        long bytes = 0;
+        if (secondaryRGBArray != null) {
+            bytes += 4L * secondaryRGBArray.length;
+        }
+        if (secondaryWeights != null) {
+            bytes += 8L * secondaryWeights.length;
+        }
+        if (secondaryPositions != null) {
+            bytes += 4L * secondaryPositions.length;
+        }
+        if (pixelBoxes != null) {
+            bytes += pixelBoxes.length;
+        }
+        return bytes;
+    }
+
+    // method to set how many threads medianCut may use
+    public void setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    // method to set how boxes are chosen for splitting (see SPLIT_ORDERS)
+    public void setSplitOrder(String splitOrder) {
+        if (!Arrays.asList(SPLIT_ORDERS).contains(splitOrder)) {
+            throw new IllegalArgumentException("unknown split order: " + splitOrder);
+        }
+        this.splitOrder = splitOrder;
+    }
+
+    public String getSplitOrder() {
+        return splitOrder;
+    }
+
+    // method to set which color stands for a box in the palette (see BOX_COLORS)
+    public void setBoxColor(String boxColor) {
+        if (!Arrays.asList(BOX_COLORS).contains(boxColor)) {
+            throw new IllegalArgumentException("unknown box color: " + boxColor);
+        }
+        this.boxColor = boxColor;
+    }
+
+    public String getBoxColor() {
+        return boxColor;
+    }
+
+    // method to track which box every pixel ends up in (pixel mode only)
+    // positions must be parallel to the container, giving the original pixel index of each entry (0, 1, 2, ... for a
+    // fresh copy of the image); the array is reordered along with the container so it stays valid for a later ColorReducer
+    // that is given the same container
+    public void setPixelPositions(int[] positions) {
+        if (weights != null) {
+            throw new IllegalStateException("pixel positions cannot be tracked in histogram mode");
+        }
+        if (positions.length < entryCount) {
+            throw new IllegalArgumentException("positions must be parallel to the pixel array");
+        }
+        this.positions = positions;
+        if (secondaryPositions == null || secondaryPositions.length < entryCount) {
+            secondaryPositions = new int[entryCount];
+        }
+        if (pixelBoxes == null || pixelBoxes.length < entryCount) {
+            pixelBoxes = new byte[entryCount];
+        }
+    }
+
+    // method to get the palette slot of the box each original pixel was placed in by the last medianCut call
+    // (the median cut assignment itself, which needs no nearest-color search); null unless positions are tracked
+    // the array is reused by later cuts and may be longer than the image
+    public byte[] getPixelBoxes() {
+        return pixelBoxes;
+    }
+
+    // method to access the box tree of the last medianCut call
+    public SplitTree getSplitTree() {
+        return splitTree;
+    }
+
     //method that finds the needed depth of recursion and calls the recursive medianCut method.
     public void medianCut() {
 
+        if (!splitOrder.equals("balanced")) {
+            if (parallelism > 1) {
+                forkJoinPool(parallelism).invoke(ForkJoinTask.adapt(this::priorityCut));
+            } else {
+                priorityCut();
+            }
+            fillOutPalette();
+            return;
+        }
+
         // sets a depth based on the number of colors needed in the palette
         int depthOfRecursion = colorDepth();
 
+        // node ids follow the layout of a complete binary tree: the children of node n are 2n+1 and 2n+2
+        treeDepth = depthOfRecursion;
+        splitTree = new SplitTree(2 * (1 << depthOfRecursion) - 1);
+        nodeColors = new RGB[splitTree.getCapacity()];
+        colorPalette = new RGB[1 << depthOfRecursion];
+
         // original call of the main recursive algorithm
-        medianCut(0, RGBArray.length - 1, depthOfRecursion);
+        // with more than one thread the same cut runs as fork/join tasks; the result is identical either way
+        if (parallelism > 1) {
+            forkJoinPool(parallelism).invoke(new MedianCutTask(0, entryCount - 1, depthOfRecursion, 0, null));
+        } else {
+            medianCut(0, entryCount - 1, depthOfRecursion, 0, null);
+        }
 
         fillOutPalette();
     }
 
+    // method to get the shared fork/join pool with the given number of threads: the common pool when it has that many,
+    // otherwise a pool created on first use and kept
+    static ForkJoinPool forkJoinPool(int parallelism) {
+        if (parallelism == ForkJoinPool.commonPool().getParallelism()) {
+            return ForkJoinPool.commonPool();
+        }
+        return POOLS.computeIfAbsent(parallelism, ForkJoinPool::new);
+    }
+
     // recursive method to progressively cut the color space in half along the channel with the widest value range
-    private void medianCut(int startIndex, int endIndex, int depthOfRecursion) {
+    // each box writes its color to the palette slot given by its position in the box tree, so boxes can be cut in any order
+    // every box is measured once, right after the partition of its parent (the root, passed in as null, when it starts)
+    private void medianCut(int startIndex, int endIndex, int depthOfRecursion, int paletteSlot, BoxStats stats) {
+
+        // an empty box contributes no color (only happens when there are fewer pixels or bins than colors)
+        if (startIndex > endIndex) {
+            return;
+        }
+        if (stats == null) {
+            stats = measure(startIndex, endIndex);
+        }
 
         // base case
         if (depthOfRecursion <= 0) {
 
-            //finds the average color for the box
-            int averageR = (findColorMax(startIndex, endIndex, 'R') + findColorMin(startIndex, endIndex, 'R')) / 2;
-            int averageG = (findColorMax(startIndex, endIndex, 'G') + findColorMin(startIndex, endIndex, 'G')) / 2;
-            int averageB = (findColorMax(startIndex, endIndex, 'B') + findColorMin(startIndex, endIndex, 'B')) / 2;
-            RGB newColor = new RGB(averageR, averageG, averageB);
-
-            // place the color in the output palette and iterate to the next index to continue building the list
-            colorPalette[paletteIndex] = newColor;
-            paletteIndex ++;
+            // place the color of the box in the output palette at the slot of this box
+            colorPalette[paletteSlot] = boxColor(stats);
+            recordLeaf(startIndex, endIndex, depthOfRecursion, paletteSlot, stats);
             return;
         }
 
         // find which color channel has the largest range
-        char largestRange = findLargestRange(startIndex, endIndex);
+        char largestRange = stats.getLargestRangeChannel();
+
+        // sorts according to the color channel with the largest range and finds the median
+        int middle = partition(startIndex, endIndex, largestRange);
+        recordSplit(middle, endIndex, depthOfRecursion, paletteSlot, largestRange, stats);
+
+        // recursively call median cut on the two halves; the lower half takes the first half of this box's palette slots
+        // both halves are measured while the partition has left them in cache
+        medianCut(startIndex, middle, depthOfRecursion - 1, paletteSlot, measure(startIndex, middle));
+        medianCut(middle + 1, endIndex, depthOfRecursion - 1, paletteSlot + (1 << (depthOfRecursion - 1)), measure(middle + 1, endIndex));
+    }
+
+    // fork/join version of the recursive medianCut
+    // large boxes are measured and partitioned in parallel chunks, then both halves are cut as separate tasks
+    // once a box is small enough, the rest of its subtree is cut by the sequential method
+    @SuppressWarnings("serial")
+    private class MedianCutTask extends RecursiveAction {
+
+        private final int startIndex;
+        private final int endIndex;
+        private final int depthOfRecursion;
+        private final int paletteSlot;
+        private final BoxStats stats;
+
+        MedianCutTask(int startIndex, int endIndex, int depthOfRecursion, int paletteSlot, BoxStats stats) {
+            this.startIndex = startIndex;
+            this.endIndex = endIndex;
+            this.depthOfRecursion = depthOfRecursion;
+            this.paletteSlot = paletteSlot;
+            this.stats = stats;
+        }
+
+        @Override
+        protected void compute() {
+            if (endIndex - startIndex + 1 < PARALLEL_BOX_THRESHOLD) {
+                medianCut(startIndex, endIndex, depthOfRecursion, paletteSlot, stats);
+                return;
+            }
+
+            BoxStats boxStats = stats != null ? stats : measure(startIndex, endIndex);
+
+            // base case: same as the sequential version
+            if (depthOfRecursion <= 0) {
+                colorPalette[paletteSlot] = boxColor(boxStats);
+                recordLeaf(startIndex, endIndex, depthOfRecursion, paletteSlot, boxStats);
+                return;
+            }
+
+            char largestRange = boxStats.getLargestRangeChannel();
+            int middle = parallelPartition(startIndex, endIndex, largestRange);
+            recordSplit(middle, endIndex, depthOfRecursion, paletteSlot, largestRange, boxStats);
 
-        // sorts according to the color channel with the largest range
-        mergeSort(startIndex, endIndex, largestRange);
+            invokeAll(new MedianCutTask(startIndex, middle, depthOfRecursion - 1, paletteSlot, measure(startIndex, middle)),
+                    new MedianCutTask(middle + 1, endIndex, depthOfRecursion - 1, paletteSlot + (1 << (depthOfRecursion - 1)),
+                            measure(middle + 1, endIndex)));
+        }
+    }
+
+    // method to cut the boxes in order of importance instead of level by level
+    // the boxes wait in a priority queue keyed by the split order; the most important box is sorted on its widest channel,
+    // split at the median, and its two halves are measured right after that partition and queued, until there are as
+    // many boxes as colors or no box has more than one color left
+    // the greedy choice does not depend on the palette size, so the palette of any smaller size is the state after
+    // fewer splits (see paletteNodes); node ids are given out in creation order and palette slots in tree order
+    private void priorityCut() {
+        int capacity = Math.max(1, 2 * numberOfColors - 1);
+        splitTree = new SplitTree(capacity);
+        nodeCreatedAt = new int[capacity];
+        nodeSplitAt = new int[capacity];
+        Arrays.fill(nodeSplitAt, Integer.MAX_VALUE);
+        nodeColors = new RGB[capacity];
+        colorPalette = new RGB[numberOfColors];
+        treeDepth = 0;
+        if (entryCount == 0) {
+            return;
+        }
+
+        PriorityQueue<Box> queue = new PriorityQueue<>((a, b) -> a.priority != b.priority ? Double.compare(b.priority, a.priority) : Integer.compare(a.node, b.node));
+        int[] boxStarts = new int[capacity];
+        int[] boxEnds = new int[capacity];
+        int nextNode = 0;
+        int rootEnd = entryCount - 1;
+        Box root = queueBox(0, rootEnd, nextNode++, measure(0, rootEnd));
+        nodeCreatedAt[root.node] = -1;
+        boxStarts[root.node] = root.startIndex;
+        boxEnds[root.node] = root.endIndex;
+        queue.add(root);
+
+        int boxCount = 1;
+        int splitCount = 0;
+        while (boxCount < numberOfColors && !queue.isEmpty() && queue.peek().priority > 0) {
+            Box box = queue.poll();
+            char largestRange = box.stats.getLargestRangeChannel();
+            int middle;
+            if (parallelism > 1 && box.endIndex - box.startIndex + 1 >= PARALLEL_BOX_THRESHOLD) {
+                middle = parallelPartition(box.startIndex, box.endIndex, largestRange);
+            } else {
+                middle = partition(box.startIndex, box.endIndex, largestRange);
+            }
 
-        // find median of color box once the pixels are sorted
-        int middle = (endIndex + startIndex) / 2;
+            Box lower = queueBox(box.startIndex, middle, nextNode++, measure(box.startIndex, middle));
+            Box upper = queueBox(middle + 1, box.endIndex, nextNode++, measure(middle + 1, box.endIndex));
+            splitTree.setSplit(box.node, largestRange, RGB.channel(RGBArray[middle], largestRange), lower.node, upper.node);
+            nodeSplitAt[box.node] = splitCount;
+            for (Box child : new Box[] {lower, upper}) {
+                nodeCreatedAt[child.node] = splitCount;
+                boxStarts[child.node] = child.startIndex;
+                boxEnds[child.node] = child.endIndex;
+                queue.add(child);
+            }
+            splitCount++;
+            boxCount++;
+        }
+
+        // the leaves get palette slots in tree order, so neighboring slots hold neighboring boxes
+        int[] leafNodes = paletteNodes(numberOfColors);
+        for (int slot = 0; slot < leafNodes.length; slot++) {
+            int node = leafNodes[slot];
+            if (node < 0) {
+                continue;
+            }
+            colorPalette[slot] = nodeColors[node];
+            splitTree.setLeaf(node, slot);
+            if (positions != null) {
+                for (int i = boxStarts[node]; i <= boxEnds[node]; i++) {
+                    pixelBoxes[positions[i]] = (byte) slot;
+                }
+            }
+        }
+    }
+
+    // method to make the queue entry of a new box from its stats, recording its bounds and color in the tree
+    private Box queueBox(int startIndex, int endIndex, int node, BoxStats stats) {
+        Box box = new Box();
+        box.startIndex = startIndex;
+        box.endIndex = endIndex;
+        box.node = node;
+        box.stats = stats;
+        if (stats.getWidestRange() == 0) {
+            box.priority = 0; // a single color cannot be split
+        } else if (splitOrder.equals("variance")) {
+            box.priority = stats.getSquaredError();
+        } else {
+            box.priority = (double) stats.getCount() * stats.getWidestRange();
+        }
+        splitTree.setBounds(node, stats.getBounds());
+        nodeColors[node] = boxColor(stats);
+        return box;
+    }
+
+    // method to measure a box in a single pass (in parallel chunks when it is large and medianCut has several threads)
+    // the color sums are only gathered when the box color or the split order needs them, since they cost about a
+    // third of the time of a bounds-only pass
+    private BoxStats measure(int startIndex, int endIndex) {
+        boolean sums = boxColor.equals("mean") || splitOrder.equals("variance");
+        if (parallelism > 1 && endIndex - startIndex + 1 >= PARALLEL_BOX_THRESHOLD) {
+            return parallelMeasure(startIndex, endIndex, sums);
+        }
+        return sums ? BoxStats.of(RGBArray, weights, startIndex, endIndex) : BoxStats.boundsOf(RGBArray, weights, startIndex, endIndex);
+    }
+
+    // method to get the color that stands for a box in the palette
+    private RGB boxColor(BoxStats stats) {
+        return boxColor.equals("mean") ? stats.getMeanColor() : stats.getMidpointColor();
+    }
+
+    // method to find the split tree node of a box from its depth and first palette slot
+    private int treeNode(int depthOfRecursion, int paletteSlot) {
+        int level = treeDepth - depthOfRecursion;
+        return (1 << level) - 1 + (paletteSlot >> depthOfRecursion);
+    }
 
-        // recursively call median cut on the two halves
-        medianCut(startIndex, middle, depthOfRecursion - 1);
-        medianCut(middle + 1, endIndex, depthOfRecursion - 1);
+    // method to record the split of a partitioned box in the split tree
+    // the threshold is the largest value in the lower half; with an empty upper half every value goes to the lower one
+    private void recordSplit(int middle, int endIndex, int depthOfRecursion, int paletteSlot, char color, BoxStats stats) {
+        int node = treeNode(depthOfRecursion, paletteSlot);
+        splitTree.setBounds(node, stats.getBounds());
+        nodeColors[node] = boxColor(stats);
+        int threshold = middle < endIndex ? RGB.channel(RGBArray[middle], color) : 255;
+        splitTree.setSplit(node, color, threshold, 2 * node + 1, middle < endIndex ? 2 * node + 2 : -1);
     }
 
-    //method to compute the power of 2 that the number of colors is equivalent to (ex. 8 returns 3, 32 returns 5)
+    // method to record a leaf box in the split tree and, when positions are tracked, in the per-pixel box assignment
+    private void recordLeaf(int startIndex, int endIndex, int depthOfRecursion, int paletteSlot, BoxStats stats) {
+        int node = treeNode(depthOfRecursion, paletteSlot);
+        splitTree.setLeaf(node, paletteSlot);
+        splitTree.setBounds(node, stats.getBounds());
+        nodeColors[node] = colorPalette[paletteSlot];
+        if (positions != null) {
+            for (int i = startIndex; i <= endIndex; i++) {
+                pixelBoxes[positions[i]] = (byte) paletteSlot;
+            }
+        }
+    }
+
+    //method to compute the smallest power of 2 that holds the number of colors (ex. 8 returns 3, 32 returns 5, 48 returns 6)
     private int colorDepth() {
-        int numColors = numberOfColors;
         int depthNum = 0;
-        while (numColors > 1) {
-            numColors = numColors / 2;
+        while ((1 << depthNum) < numberOfColors) {
             depthNum ++;
         }
         return depthNum;
@@ -83,22 +485,155 @@ public class ColorReducer {
 
     // method to access output color palette
     public RGB[] getColorPalette() {
-        return colorPalette;
+        return getColorPalette(numberOfColors);
+    }
+
+    // method to read the palette of a smaller size off the box tree of the last medianCut call
+    // the boxes at level k of the tree are exactly the boxes a separate run with 2^k colors ends with (the cut above them
+    // is the same), so the palette of a power of 2 is identical to that run's without cutting again
+    // any other size takes the boxes of the level below it and splits the ones with the widest channel range once more
+    public RGB[] getColorPalette(int numColors) {
+        if (numColors == colorPalette.length) {
+            return colorPalette;
+        }
+        int[] nodes = paletteNodes(numColors);
+        RGB[] palette = new RGB[numColors];
+        for (int slot = 0; slot < numColors; slot++) {
+            palette[slot] = nodes[slot] >= 0 && splitTree.isPresent(nodes[slot]) ? nodeColors[nodes[slot]] : new RGB(0, 0, 0);
+        }
+        return palette;
+    }
+
+    // method to get the box tree of a smaller palette (see getColorPalette(int))
+    public SplitTree getSplitTree(int numColors) {
+        return numColors == colorPalette.length ? splitTree : splitTree.prune(paletteNodes(numColors));
+    }
+
+    // method to get the per-pixel box assignment for a smaller palette (see getColorPalette(int))
+    // every leaf box of the full cut lies inside exactly one box of the smaller palette, so each leaf slot is looked up
+    // in a table of the slot of its enclosing box
+    public byte[] getPixelBoxes(int numColors) {
+        if (numColors == colorPalette.length || pixelBoxes == null) {
+            return pixelBoxes;
+        }
+        return getPixelBoxes(numColors, new byte[entryCount]);
+    }
+
+    // method to write the per-pixel box assignment for a smaller palette into the given array, which is returned, so a
+    // caller cutting many images can keep reusing one array; for the full palette the reducer's own array is returned
+    public byte[] getPixelBoxes(int numColors, byte[] boxes) {
+        if (numColors == colorPalette.length || pixelBoxes == null) {
+            return pixelBoxes;
+        }
+        if (boxes.length < entryCount) {
+            throw new IllegalArgumentException("the array is shorter than the image");
+        }
+        int[] nodes = paletteNodes(numColors);
+        byte[] slotOfLeaf = new byte[colorPalette.length];
+        for (int slot = 0; slot < numColors; slot++) {
+            if (nodes[slot] >= 0) {
+                fillLeafSlots(nodes[slot], (byte) slot, slotOfLeaf);
+            }
+        }
+        for (int i = 0; i < entryCount; i++) {
+            boxes[i] = slotOfLeaf[pixelBoxes[i] & 0xFF];
+        }
+        return boxes;
+    }
+
+    // recursive method to give every leaf below a node the slot of that node
+    private void fillLeafSlots(int node, byte slot, byte[] slotOfLeaf) {
+        if (node < 0) {
+            return;
+        }
+        if (splitTree.isLeaf(node)) {
+            slotOfLeaf[splitTree.getPaletteSlot(node)] = slot;
+            return;
+        }
+        fillLeafSlots(splitTree.getLeftChild(node), slot, slotOfLeaf);
+        fillLeafSlots(splitTree.getRightChild(node), slot, slotOfLeaf);
+    }
+
+    // method to choose the tree node of each slot of a palette no larger than the last cut's
+    // a power of 2 takes every node of its level; for other sizes the level below has too few boxes, so the ones with the
+    // widest channel range (ties to the lower node id) are replaced by their two children, which keep the box's slot order
+    // slots left without a box (when too few boxes can be split) get -1
+    private int[] paletteNodes(int numColors) {
+        if (numColors < 1 || numColors > colorPalette.length) {
+            throw new IllegalArgumentException("palette size must be between 1 and " + colorPalette.length);
+        }
+        if (!splitOrder.equals("balanced")) {
+            // the boxes that existed after the first numColors - 1 splits, in tree order
+            int[] nodes = new int[numColors];
+            Arrays.fill(nodes, -1);
+            if (splitTree.isPresent(splitTree.getRoot())) {
+                collectBoxes(splitTree.getRoot(), numColors - 1, nodes, 0);
+            }
+            return nodes;
+        }
+        int level = 31 - Integer.numberOfLeadingZeros(numColors);
+        int levelSize = 1 << level;
+        int firstNode = levelSize - 1;
+
+        boolean[] expanded = new boolean[levelSize];
+        int extraColors = numColors - levelSize;
+        if (extraColors > 0) {
+            List<Integer> candidates = new ArrayList<>();
+            for (int i = 0; i < levelSize; i++) {
+                int node = firstNode + i;
+                if (splitTree.isPresent(node) && splitTree.isPresent(2 * node + 1) && splitTree.isPresent(2 * node + 2)) {
+                    candidates.add(i);
+                }
+            }
+            candidates.sort(Comparator.comparingInt((Integer i) -> -splitTree.getLargestRange(firstNode + i)).thenComparingInt(i -> i));
+            for (int c = 0; c < Math.min(extraColors, candidates.size()); c++) {
+                expanded[candidates.get(c)] = true;
+            }
+        }
+
+        int[] nodes = new int[numColors];
+        Arrays.fill(nodes, -1);
+        int slot = 0;
+        for (int i = 0; i < levelSize; i++) {
+            int node = firstNode + i;
+            if (expanded[i]) {
+                nodes[slot++] = 2 * node + 1;
+                nodes[slot++] = 2 * node + 2;
+            } else {
+                nodes[slot++] = node;
+            }
+        }
+        return nodes;
     }
 
-    // method to
+    // recursive method to list, in tree order, the boxes below a node that exist after the given number of splits
+    private int collectBoxes(int node, int splits, int[] nodes, int filled) {
+        if (nodeSplitAt[node] >= splits) {
+            nodes[filled++] = node;
+            return filled;
+        }
+        filled = collectBoxes(splitTree.getLeftChild(node), splits, nodes, filled);
+        return collectBoxes(splitTree.getRightChild(node), splits, nodes, filled);
+    }
+
+    // method to get the number of boxes the last medianCut call split
+    public int getSplitCount() {
+        return splitTree == null ? 0 : splitTree.getSplitCount();
+    }
+
+    // method to get the number of palette slots that were filled by a box
     public int getPaletteIndex() {
         return paletteIndex;
     }
 
     // method to find maximum value for the specified color channel
     // searches for max among RGBs between (inclusive) the start and end indices
+    // the channel is picked once, outside the loop, so the loop is a plain max reduction the JIT can vectorize
     public int findColorMax(int startIndex, int endIndex, char color) {
-        int max = RGBArray[startIndex].getChannel(color);
-        for (int i = startIndex + 1; i <= endIndex; i++) {
-            if (RGBArray[i].getChannel(color) > max) {
-                max = RGBArray[i].getChannel(color);
-            }
+        int shift = channelShift(color);
+        int max = 0;
+        for (int i = startIndex; i <= endIndex; i++) {
+            max = Math.max(max, (RGBArray[i] >> shift) & 0xFF);
         }
         return max;
     }
@@ -106,11 +641,10 @@ public class ColorReducer {
     // method to find minimum value for the specified color channel
     // searches for min among RGBs between (inclusive) the start and end indices
     public int findColorMin(int startIndex, int endIndex, char color) {
-        int min = RGBArray[startIndex].getChannel(color);
-        for (int i = startIndex + 1; i <= endIndex; i++) {
-            if (RGBArray[i].getChannel(color) < min) {
-                min = RGBArray[i].getChannel(color);
-            }
+        int shift = channelShift(color);
+        int min = 255;
+        for (int i = startIndex; i <= endIndex; i++) {
+            min = Math.min(min, (RGBArray[i] >> shift) & 0xFF);
         }
         return min;
     }
@@ -123,7 +657,11 @@ public class ColorReducer {
         int gRange = findColorMax(startIndex, endIndex, 'G') - findColorMin(startIndex, endIndex, 'G');
         int bRange = findColorMax(startIndex, endIndex, 'B') - findColorMin(startIndex, endIndex, 'B');
 
-        // returns the color with the largest range
+        return largestRange(rRange, gRange, bRange);
+    }
+
+    // method to pick the color channel with the largest range (ties go to R, then G)
+    static char largestRange(int rRange, int gRange, int bRange) {
         if (rRange >= gRange && rRange >= bRange) {
             return 'R';
         }
@@ -135,7 +673,229 @@ public class ColorReducer {
         }
     }
 
+    // method to sort the pixels between (inclusive) the start and end indices on one color channel in linear time
+    // channels are 8-bit, so a counting sort over the 256 possible values replaces a comparison sort
+    // pixels with equal values are placed in reverse order of their current position, which is exactly the order
+    // mergeSort leaves them in, so the boxes (and therefore the palette) are identical to the merge sort version
+    void countingSort(int startIndex, int endIndex, char color) {
+        int shift = channelShift(color);
+
+        // count the pixels for each channel value, offset by one so the prefix sum gives the start of each value
+        int[] valueStarts = new int[257];
+        for (int i = startIndex; i <= endIndex; i++) {
+            valueStarts[((RGBArray[i] >> shift) & 0xFF) + 1]++;
+        }
+        for (int v = 1; v < 257; v++) {
+            valueStarts[v] += valueStarts[v - 1];
+        }
+
+        // scatter into the secondary array walking backwards so equal values come out in reverse order
+        // bin weights and pixel positions, when present, move along with their colors
+        if (weights == null && positions == null) {
+            for (int i = endIndex; i >= startIndex; i--) {
+                int pixel = RGBArray[i];
+                secondaryRGBArray[startIndex + valueStarts[(pixel >> shift) & 0xFF]++] = pixel;
+            }
+        } else {
+            for (int i = endIndex; i >= startIndex; i--) {
+                int pixel = RGBArray[i];
+                int target = startIndex + valueStarts[(pixel >> shift) & 0xFF]++;
+                secondaryRGBArray[target] = pixel;
+                if (weights != null) {
+                    secondaryWeights[target] = weights[i];
+                }
+                if (positions != null) {
+                    secondaryPositions[target] = positions[i];
+                }
+            }
+        }
+
+        // writes the now sorted values back into the RGBArray class variable
+        copyBack(startIndex, endIndex - startIndex + 1);
+    }
+
+    // method to get the bit offset of a color channel within a packed pixel
+    private static int channelShift(char color) {
+        if (color == 'R') {
+            return 16;
+        } else if (color == 'G') {
+            return 8;
+        } else {
+            return 0;
+        }
+    }
+
+    // parallel version of measure
+    // each chunk of the box is measured by its own task and the chunk stats are combined
+    private BoxStats parallelMeasure(int startIndex, int endIndex, boolean sums) {
+        int[] chunkStarts = chunkStarts(startIndex, endIndex);
+        int chunks = chunkStarts.length - 1;
+        BoxStats[] chunkStats = new BoxStats[chunks];
+        runChunks(chunks, c -> chunkStats[c] = sums ? BoxStats.of(RGBArray, weights, chunkStarts[c], chunkStarts[c + 1] - 1)
+                : BoxStats.boundsOf(RGBArray, weights, chunkStarts[c], chunkStarts[c + 1] - 1));
+        for (int c = 1; c < chunks; c++) {
+            chunkStats[0].combine(chunkStats[c]);
+        }
+        return chunkStats[0];
+    }
+
+    // method to sort a box on one channel exactly like countingSort and find the last index of its lower half
+    // the median is (endIndex + startIndex) / 2, or in histogram mode the first bin where the running pixel count reaches
+    // half of the box's pixels, kept short of the last bin so that both halves get at least one bin
+    // in histogram mode the median is found during the scatter: an entry belongs to the lower half exactly when the pixels
+    // before its sorted position are less than half of the box, and those pixels are the bins of smaller values plus the
+    // bins of its own value that the backward scatter has already placed, so no second pass over the weights is needed
+    private int partition(int startIndex, int endIndex, char color) {
+        if (weights == null || startIndex == endIndex) {
+            countingSort(startIndex, endIndex, color);
+            return (endIndex + startIndex) / 2;
+        }
+        int shift = channelShift(color);
+
+        // count the bins and their pixels for each channel value, offset by one so the prefix sums give the starts
+        int[] valueStarts = new int[257];
+        long[] pixelsBefore = new long[257];
+        for (int i = startIndex; i <= endIndex; i++) {
+            int value = ((RGBArray[i] >> shift) & 0xFF) + 1;
+            valueStarts[value]++;
+            pixelsBefore[value] += weights[i];
+        }
+        for (int v = 1; v < 257; v++) {
+            valueStarts[v] += valueStarts[v - 1];
+            pixelsBefore[v] += pixelsBefore[v - 1];
+        }
+        long total = pixelsBefore[256];
+
+        // scatter walking backwards, so equal values come out in reverse order as in countingSort
+        int middle = startIndex;
+        for (int i = endIndex; i >= startIndex; i--) {
+            int pixel = RGBArray[i];
+            int value = (pixel >> shift) & 0xFF;
+            int target = startIndex + valueStarts[value]++;
+            secondaryRGBArray[target] = pixel;
+            secondaryWeights[target] = weights[i];
+            if (target < endIndex && pixelsBefore[value] * 2 < total) {
+                middle = Math.max(middle, target);
+            }
+            pixelsBefore[value] += weights[i];
+        }
+
+        // writes the now sorted values back into the RGBArray class variable
+        copyBack(startIndex, endIndex - startIndex + 1);
+        return middle;
+    }
+
+    // parallel version of partition with exactly the same output
+    // every chunk counts its own values; for each value the chunks are then given their output positions last chunk first,
+    // and each chunk scatters walking backwards, so equal values still end up in reverse order of their position
+    // in histogram mode each chunk also starts the running pixel count of every value at the pixels of that value placed
+    // before its own (those of the smaller values and of the chunks after it)
+    private int parallelPartition(int startIndex, int endIndex, char color) {
+        int shift = channelShift(color);
+        int[] chunkStarts = chunkStarts(startIndex, endIndex);
+        int chunks = chunkStarts.length - 1;
+
+        int[][] chunkPositions = new int[chunks][256];
+        long[][] chunkPixelsBefore = weights == null ? null : new long[chunks][256];
+        runChunks(chunks, c -> {
+            int[] counts = chunkPositions[c];
+            for (int i = chunkStarts[c]; i < chunkStarts[c + 1]; i++) {
+                int value = (RGBArray[i] >> shift) & 0xFF;
+                counts[value]++;
+                if (weights != null) {
+                    chunkPixelsBefore[c][value] += weights[i];
+                }
+            }
+        });
+
+        // turn the per-chunk counts into per-chunk starting positions (and pixel counts before them)
+        int next = startIndex;
+        long pixelsBefore = 0;
+        for (int v = 0; v < 256; v++) {
+            for (int c = chunks - 1; c >= 0; c--) {
+                int count = chunkPositions[c][v];
+                chunkPositions[c][v] = next;
+                next += count;
+                if (weights != null) {
+                    long pixels = chunkPixelsBefore[c][v];
+                    chunkPixelsBefore[c][v] = pixelsBefore;
+                    pixelsBefore += pixels;
+                }
+            }
+        }
+        long total = pixelsBefore;
+
+        int[] chunkMiddles = new int[chunks];
+        runChunks(chunks, c -> {
+            int[] targets = chunkPositions[c];
+            int chunkMiddle = startIndex;
+            for (int i = chunkStarts[c + 1] - 1; i >= chunkStarts[c]; i--) {
+                int pixel = RGBArray[i];
+                int value = (pixel >> shift) & 0xFF;
+                int target = targets[value]++;
+                secondaryRGBArray[target] = pixel;
+                if (positions != null) {
+                    secondaryPositions[target] = positions[i];
+                }
+                if (weights != null) {
+                    secondaryWeights[target] = weights[i];
+                    if (target < endIndex && chunkPixelsBefore[c][value] * 2 < total) {
+                        chunkMiddle = Math.max(chunkMiddle, target);
+                    }
+                    chunkPixelsBefore[c][value] += weights[i];
+                }
+            }
+            chunkMiddles[c] = chunkMiddle;
+        });
+
+        // writes the now sorted values back, one chunk per task
+        runChunks(chunks, c -> copyBack(chunkStarts[c], chunkStarts[c + 1] - chunkStarts[c]));
+
+        if (weights == null) {
+            return (endIndex + startIndex) / 2;
+        }
+        int middle = startIndex;
+        for (int chunkMiddle : chunkMiddles) {
+            middle = Math.max(middle, chunkMiddle);
+        }
+        return middle;
+    }
+
+    // method to copy a sorted range from the secondary arrays back into the primary ones
+    private void copyBack(int startIndex, int length) {
+        System.arraycopy(secondaryRGBArray, startIndex, RGBArray, startIndex, length);
+        if (weights != null) {
+            System.arraycopy(secondaryWeights, startIndex, weights, startIndex, length);
+        }
+        if (positions != null) {
+            System.arraycopy(secondaryPositions, startIndex, positions, startIndex, length);
+        }
+    }
+
+    // method to split the box between (inclusive) the start and end indices into a few chunks per thread
+    // returns the start index of every chunk followed by endIndex + 1
+    private int[] chunkStarts(int startIndex, int endIndex) {
+        int length = endIndex - startIndex + 1;
+        int chunks = Math.max(1, Math.min(parallelism * 4, length / (PARALLEL_BOX_THRESHOLD / 4)));
+        int[] chunkStarts = new int[chunks + 1];
+        for (int c = 0; c <= chunks; c++) {
+            chunkStarts[c] = startIndex + (int) ((long) length * c / chunks);
+        }
+        return chunkStarts;
+    }
+
+    // method to run one fork/join task per chunk and wait for all of them (must be called from inside the pool)
+    private static void runChunks(int chunks, IntConsumer chunkWork) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+        for (int c = 0; c < chunks; c++) {
+            int chunk = c;
+            tasks.add(ForkJoinTask.adapt(() -> chunkWork.accept(chunk)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
     // recursive method to perform mergesort
+    // no longer used by medianCut; kept as the reference the counting sort is checked and benchmarked against
     void mergeSort(int startIndex, int endIndex, char color)
     {
         // checks if the size of the piece of the array to be sorted is greater than 1
@@ -188,7 +948,7 @@ public class ColorReducer {
 
             // if both sides still have elements, compare the values between the two arrays
             else {
-                if (RGBArray[leftCounter].compareToChannel(RGBArray[rightCounter], color) == -1) {
+                if (RGB.channel(RGBArray[leftCounter], color) < RGB.channel(RGBArray[rightCounter], color)) {
                     secondaryRGBArray[currIndex] = RGBArray[leftCounter];
                     leftCounter++;
                 }
@@ -217,8 +977,13 @@ public class ColorReducer {
     // method to fill out any spots in the palette that may have been left unfilled
     // prevents crashes if the original .raw image had fewer colors than were specified to be used in the palette
     private void fillOutPalette() {
-        for (int i = paletteIndex; i < numberOfColors; i++) {
-            colorPalette[i] = new RGB(0, 0, 0);
+        paletteIndex = 0;
+        for (int i = 0; i < colorPalette.length; i++) {
+            if (colorPalette[i] == null) {
+                colorPalette[i] = new RGB(0, 0, 0);
+            } else {
+                paletteIndex++;
+            }
         }
     }
 }
@@ -0,0 +1,58 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * ColorSpace interface
+ */
+
+// interface: a color space pixels can be quantized and mapped in instead of RGB
+// colors are converted to three 8-bit channels packed like 0xRRGGBB, so median cut, every engine, every mapper and the
+// dithering all run on converted pixels unchanged, and their squared distances become distances in the new space
+// palettes found in the space are converted back to RGB for the .bmp color table; the palette indices are unchanged
+// every implementation is thread-safe
+public interface ColorSpace {
+
+    // names accepted by forName()
+    String[] SPACES = {"rgb", "ycbcr", "oklab"};
+
+    // method to convert one packed RGB color into the space
+    int fromRGB(int pixel);
+
+    // method to convert one packed color of the space back to RGB (rounded, and clamped where it falls outside RGB)
+    int toRGB(int color);
+
+    // method to convert a run of packed RGB pixels into the space (source and target may be the same array)
+    default void fromRGB(int[] pixels, int pixelOffset, int[] target, int targetOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] = fromRGB(pixels[pixelOffset + i]);
+        }
+    }
+
+    // method to convert a palette found in the space back to RGB
+    default RGB[] toRGB(RGB[] palette) {
+        RGB[] converted = new RGB[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            converted[i] = RGB.fromPacked(toRGB(palette[i].toPacked()));
+        }
+        return converted;
+    }
+
+    // method to get a color space by name
+    // rgb: no conversion (returns null, so callers skip the conversion entirely)
+    // ycbcr: BT.601 luma and chroma, with the chroma at half weight since the eye resolves it less finely (per-channel
+    //   lookup tables, a few table reads per pixel)
+    // oklab: the OKLab perceptual space, where distances track perceived differences closely (per-color cache in front of
+    //   the exact transform)
+    static ColorSpace forName(String name) {
+        switch (name) {
+            case "rgb":
+                return null;
+            case "ycbcr":
+                return new YCbCrColorSpace();
+            case "oklab":
+                return new OKLabColorSpace();
+            default:
+                throw new IllegalArgumentException("unknown color space: " + name);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * ExhaustivePaletteMapper class
+ */
+
+// class object: finds the closest palette color by testing every color in the palette, O(colors) per pixel
+// this is the reference the other mappers are checked against
+// runs of pixels are searched a block at a time by NearestColorKernel, which compares a palette color against many pixels
+// at once; referenceIndex keeps the plain loop over the palette, which the benchmark checks the kernel against on every
+// image before timing the mappers
+public class ExhaustivePaletteMapper implements PaletteMapper {
+
+    private int[] palette;
+    private NearestColorKernel kernel;
+
+    // constructor
+    public ExhaustivePaletteMapper(int[] palette) {
+        this.palette = palette.clone();
+        this.kernel = new NearestColorKernel(palette);
+    }
+
+    @Override
+    public int mapPixel(int pixel) {
+        return kernel.nearest(pixel);
+    }
+
+    @Override
+    public void mapPixels(int[] pixels, int pixelOffset, byte[] indices, int indexOffset, int length) {
+        kernel.nearest(pixels, pixelOffset, indices, indexOffset, length);
+    }
+
+    // method to find the closest color with the original loop over the palette
+    public int referenceIndex(int pixel) {
+        // set starting index within the palette array of the minimum mean squared distance
+        int minIndex = 0;
+        int minDist = RGB.meanSqdDist(pixel, palette[0]);
+        // loop through the color palette to find the closest color for the current pixel
+        for (int i = 1; i < palette.length; i++) {
+            // checks if the min mean sqd distance of the current color in color palette is smaller than the current smallest found so far
+            int dist = RGB.meanSqdDist(pixel, palette[i]);
+            if (dist < minDist) {
+                minIndex = i;
+                minDist = dist;
+            }
+        }
+        return minIndex;
+    }
+
+    @Override
+    public boolean isExact() {
+        return true;
+    }
+}
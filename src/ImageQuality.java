@@ -0,0 +1,35 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * ImageQuality class
+ */
+
+// class object: measures how far a quantized image is from the original
+// the mean squared error is averaged over the three channels of every pixel, and the peak signal-to-noise ratio is
+// 10 * log10(255^2 / MSE) in decibels (higher is better, infinite for an exact copy)
+public class ImageQuality {
+
+    // method to find the mean squared error per channel of mapping packed pixels to a palette
+    public static double meanSquaredError(int[] pixels, int[] palette, PaletteMapper mapper) {
+        long sum = 0;
+        for (int pixel : pixels) {
+            sum += RGB.meanSqdDist(pixel, palette[mapper.mapPixel(pixel)]);
+        }
+        return pixels.length == 0 ? 0 : (double) sum / (3.0 * pixels.length);
+    }
+
+    // method to find the mean squared error per channel between packed pixels and the palette colors of their indices
+    public static double meanSquaredError(int[] pixels, int[] palette, byte[] indices) {
+        long sum = 0;
+        for (int i = 0; i < pixels.length; i++) {
+            sum += RGB.meanSqdDist(pixels[i], palette[indices[i] & 0xFF]);
+        }
+        return pixels.length == 0 ? 0 : (double) sum / (3.0 * pixels.length);
+    }
+
+    // method to convert a mean squared error to a peak signal-to-noise ratio in decibels
+    public static double psnr(double meanSquaredError) {
+        return meanSquaredError == 0 ? Double.POSITIVE_INFINITY : 10 * Math.log10(255.0 * 255.0 / meanSquaredError);
+    }
+}
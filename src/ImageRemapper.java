@@ -0,0 +1,265 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * ImageRemapper class
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
+
+// class object: assigns the rows of an image to the colors of one palette, optionally with dithering, on several threads
+// rows are remapped a block at a time from the top of the image down, so each block can be written out before the next
+// is read; the palette and thread-safe mappers are shared read-only, other mappers get one instance per thread
+// dither modes:
+// none: each pixel gets its nearest palette color; the block is split into row stripes, one per thread
+// ordered: an 8x8 Bayer threshold is added to each pixel before it is mapped; stripes as above
+// floyd-steinberg: the error of each pixel is diffused to its right and lower neighbors; rows are handed out to the threads
+//   in turn and each row trails the row above it by two pixels (a wavefront), so every pixel sees exactly the error it
+//   would see in a single-threaded pass and the output does not depend on the number of threads
+public class ImageRemapper {
+
+    // names accepted by the constructor
+    public static final String[] DITHER_MODES = {"none", "ordered", "floyd-steinberg"};
+
+    // 8x8 Bayer matrix, values 0 to 63
+    private static final int[] BAYER = {
+         0, 32,  8, 40,  2, 34, 10, 42,
+        48, 16, 56, 24, 50, 18, 58, 26,
+        12, 44,  4, 36, 14, 46,  6, 38,
+        60, 28, 52, 20, 62, 30, 54, 22,
+         3, 35, 11, 43,  1, 33,  9, 41,
+        51, 19, 59, 27, 49, 17, 57, 25,
+        15, 47,  7, 39, 13, 45,  5, 37,
+        63, 31, 55, 23, 61, 29, 53, 21
+    };
+
+    // a row publishes its progress to the row below every this many pixels
+    private static final int PROGRESS_STEP = 64;
+
+    private int[] palette;
+    private PaletteMapper[] mappers; // one per thread (the same instance when the mapper is thread-safe)
+    private int width;
+    private String dither;
+    private ExecutorService pool; // null to remap on the calling thread
+    private int threads;
+
+    // offset added to every channel for each Bayer cell, scaled to the spacing of the palette colors
+    private int[] orderedOffsets;
+
+    // Floyd-Steinberg error in sixteenths, 3 channels per pixel with one pixel of padding on each side
+    // a row reads the error coming from the row above in errorRows[row % 2] and writes the error for the row below in
+    // errorRows[(row + 1) % 2]; the wavefront keeps the two rows in flight from overwriting values still to be read
+    private int[][] errorRows;
+
+    private int nextRow; // image row of the next block, so dithering carries on across blocks
+
+    // constructor: the pool must have at least the given number of threads, since Floyd-Steinberg rows wait on each other
+    public ImageRemapper(String strategy, int[] palette, SplitTree tree, int width, String dither, ExecutorService pool, int threads) {
+        if (!Arrays.asList(DITHER_MODES).contains(dither)) {
+            throw new IllegalArgumentException("unknown dither mode: " + dither);
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("width must be positive");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1");
+        }
+        this.palette = palette.clone();
+        this.width = width;
+        this.dither = dither;
+        this.pool = pool;
+        this.threads = pool == null ? 1 : threads;
+
+        mappers = new PaletteMapper[this.threads];
+        mappers[0] = PaletteMapper.create(strategy, palette, tree);
+        for (int t = 1; t < this.threads; t++) {
+            mappers[t] = mappers[0].isThreadSafe() ? mappers[0] : PaletteMapper.create(strategy, palette, tree);
+        }
+
+        if (dither.equals("ordered")) {
+            // about the distance between neighboring palette colors along one channel
+            double spread = 256.0 / Math.cbrt(palette.length);
+            orderedOffsets = new int[BAYER.length];
+            for (int i = 0; i < BAYER.length; i++) {
+                orderedOffsets[i] = (int) Math.round((BAYER[i] + 0.5 - 32) * spread / 64);
+            }
+        } else if (dither.equals("floyd-steinberg")) {
+            errorRows = new int[2][3 * (width + 2)];
+        }
+    }
+
+    // method to remap the next rowCount rows of the image, packed row-major starting at pixelOffset, to palette indices
+    // blocks must be passed in order from the top of the image
+    public void remapRows(int[] pixels, int pixelOffset, byte[] indices, int indexOffset, int rowCount) throws InterruptedException {
+        int firstRow = nextRow;
+        if (dither.equals("floyd-steinberg")) {
+            AtomicIntegerArray progress = new AtomicIntegerArray(rowCount);
+            runThreads(Math.min(threads, rowCount), thread -> {
+                try {
+                    for (int r = thread; r < rowCount; r += threads) {
+                        diffuseRow(pixels, pixelOffset + r * width, indices, indexOffset + r * width, firstRow + r,
+                                mappers[thread], progress, r);
+                    }
+                } catch (RuntimeException | Error e) {
+                    // release the rows waiting on this thread so the failure reaches the caller instead of hanging it
+                    for (int r = thread; r < rowCount; r += threads) {
+                        progress.set(r, width);
+                    }
+                    throw e;
+                }
+            });
+        } else {
+            int stripes = Math.min(threads, rowCount);
+            runThreads(stripes, stripe -> {
+                int stripeStart = rowCount * stripe / stripes;
+                int stripeEnd = rowCount * (stripe + 1) / stripes;
+                int length = (stripeEnd - stripeStart) * width;
+                if (dither.equals("ordered")) {
+                    orderedStripe(pixels, pixelOffset + stripeStart * width, indices, indexOffset + stripeStart * width,
+                            firstRow + stripeStart, stripeEnd - stripeStart, mappers[stripe]);
+                } else {
+                    mappers[stripe].mapPixels(pixels, pixelOffset + stripeStart * width, indices, indexOffset + stripeStart * width, length);
+                }
+            });
+        }
+        nextRow += rowCount;
+    }
+
+    // method to get the number of lookups answered by the tables of cache mappers (0 for the other strategies)
+    public long getMapperCacheHits() {
+        long hits = 0;
+        for (int t = 0; t < threads; t++) {
+            if (mappers[t] instanceof CachingPaletteMapper && (t == 0 || mappers[t] != mappers[0])) {
+                hits += ((CachingPaletteMapper) mappers[t]).getHits();
+            }
+        }
+        return hits;
+    }
+
+    // method to run work for threads 0 to count-1 and wait for all of them, on the pool or on the calling thread
+    private void runThreads(int count, IntConsumer work) throws InterruptedException {
+        if (pool == null || count == 1) {
+            for (int t = 0; t < count; t++) {
+                work.accept(t);
+            }
+            return;
+        }
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (int t = 0; t < count; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> work.accept(thread)));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            cancel(futures);
+            throw new IllegalStateException("remapping failed", e.getCause());
+        } catch (InterruptedException e) {
+            // the pool outlives this call, so the threads are stopped here rather than left running
+            cancel(futures);
+            throw e;
+        }
+    }
+
+    // method to cancel work still queued or running; interrupted Floyd-Steinberg rows stop waiting on the row above
+    private static void cancel(List<Future<?>> futures) {
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+    }
+
+    // method to map a stripe of rows with the Bayer threshold added to each pixel
+    private void orderedStripe(int[] pixels, int pixelOffset, byte[] indices, int indexOffset, int imageRow, int rowCount, PaletteMapper mapper) {
+        for (int r = 0; r < rowCount; r++) {
+            int rowBase = ((imageRow + r) & 7) << 3;
+            int rowStart = r * width;
+            for (int x = 0; x < width; x++) {
+                int pixel = pixels[pixelOffset + rowStart + x];
+                int offset = orderedOffsets[rowBase + (x & 7)];
+                int R = clamp(RGB.red(pixel) + offset);
+                int G = clamp(RGB.green(pixel) + offset);
+                int B = clamp(RGB.blue(pixel) + offset);
+                indices[indexOffset + rowStart + x] = (byte) mapper.mapPixel(RGB.pack(R, G, B));
+            }
+        }
+    }
+
+    // method to dither one row with Floyd-Steinberg error diffusion (7/16 right, 3/16 lower left, 5/16 below, 1/16 lower right)
+    // pixel x of a row needs the row above to be done up to pixel x+1, so the row waits on the progress of the row above
+    private void diffuseRow(int[] pixels, int pixelOffset, byte[] indices, int indexOffset, int imageRow, PaletteMapper mapper,
+                            AtomicIntegerArray progress, int blockRow) {
+        int[] incoming = errorRows[imageRow & 1];
+        int[] outgoing = errorRows[(imageRow + 1) & 1];
+        int carryR = 0;
+        int carryG = 0;
+        int carryB = 0;
+        int ready = blockRow == 0 ? width : 0; // pixels of the row above known to be done (the first row's is in an earlier block)
+
+        for (int x = 0; x < width; x++) {
+            if (ready < Math.min(width, x + 2)) {
+                ready = awaitProgress(progress, blockRow - 1, Math.min(width, x + 2));
+            }
+            int p = 3 * (x + 1);
+            int pixel = pixels[pixelOffset + x];
+            int R = clamp(RGB.red(pixel) + ((incoming[p] + carryR + 8) >> 4));
+            int G = clamp(RGB.green(pixel) + ((incoming[p + 1] + carryG + 8) >> 4));
+            int B = clamp(RGB.blue(pixel) + ((incoming[p + 2] + carryB + 8) >> 4));
+            int index = mapper.mapPixel(RGB.pack(R, G, B));
+            indices[indexOffset + x] = (byte) index;
+
+            int errorR = R - RGB.red(palette[index]);
+            int errorG = G - RGB.green(palette[index]);
+            int errorB = B - RGB.blue(palette[index]);
+            carryR = 7 * errorR;
+            carryG = 7 * errorG;
+            carryB = 7 * errorB;
+
+            // the first pixel to touch an entry of the outgoing row assigns it, later pixels add to it
+            if (x == 0) {
+                outgoing[p] = 5 * errorR;
+                outgoing[p + 1] = 5 * errorG;
+                outgoing[p + 2] = 5 * errorB;
+            } else {
+                outgoing[p] += 5 * errorR;
+                outgoing[p + 1] += 5 * errorG;
+                outgoing[p + 2] += 5 * errorB;
+                outgoing[p - 3] += 3 * errorR;
+                outgoing[p - 2] += 3 * errorG;
+                outgoing[p - 1] += 3 * errorB;
+            }
+            outgoing[p + 3] = errorR;
+            outgoing[p + 4] = errorG;
+            outgoing[p + 5] = errorB;
+
+            if (x % PROGRESS_STEP == PROGRESS_STEP - 1) {
+                progress.set(blockRow, x + 1);
+            }
+        }
+        progress.set(blockRow, width);
+    }
+
+    // method to wait until a row has finished at least the given number of pixels; returns how many it has finished
+    private static int awaitProgress(AtomicIntegerArray progress, int blockRow, int needed) {
+        int done;
+        int spins = 0;
+        while ((done = progress.get(blockRow)) < needed) {
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else if (Thread.currentThread().isInterrupted()) {
+                throw new CancellationException("remapping was cancelled");
+            } else {
+                Thread.yield();
+            }
+        }
+        return done;
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : value > 255 ? 255 : value;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * KDTreePaletteMapper class
+ */
+
+import java.util.*;
+
+// class object: exact nearest-color search in a k-d tree built over the palette colors
+// the tree is stored implicitly in a sorted array: the node of a range is its middle element, the halves are its subtrees
+// thread-safe once constructed
+public class KDTreePaletteMapper implements PaletteMapper {
+
+    // palette colors and their original palette indices, in tree order
+    private int[] colors;
+    private int[] paletteIndices;
+
+    // channel shift (16, 8 or 0) each node splits on
+    private int[] splitShifts;
+
+    // constructor
+    public KDTreePaletteMapper(int[] palette) {
+        int size = palette.length;
+        colors = new int[size];
+        paletteIndices = new int[size];
+        splitShifts = new int[size];
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        build(palette, order, 0, size - 1);
+        for (int i = 0; i < size; i++) {
+            colors[i] = palette[order[i]];
+            paletteIndices[i] = order[i];
+        }
+    }
+
+    // recursive method to sort each range on its widest channel so that its middle element splits it
+    private void build(int[] palette, Integer[] order, int lowIndex, int highIndex) {
+        if (lowIndex > highIndex) {
+            return;
+        }
+        int[] mins = {255, 255, 255};
+        int[] maxes = {0, 0, 0};
+        for (int i = lowIndex; i <= highIndex; i++) {
+            for (int c = 0; c < 3; c++) {
+                int value = (palette[order[i]] >> (16 - 8 * c)) & 0xFF;
+                mins[c] = Math.min(mins[c], value);
+                maxes[c] = Math.max(maxes[c], value);
+            }
+        }
+        int widest = 0;
+        for (int c = 1; c < 3; c++) {
+            if (maxes[c] - mins[c] > maxes[widest] - mins[widest]) {
+                widest = c;
+            }
+        }
+        int shift = 16 - 8 * widest;
+        Arrays.sort(order, lowIndex, highIndex + 1, Comparator.comparingInt(index -> (palette[index] >> shift) & 0xFF));
+        int middle = (lowIndex + highIndex) >>> 1;
+        splitShifts[middle] = shift;
+        build(palette, order, lowIndex, middle - 1);
+        build(palette, order, middle + 1, highIndex);
+    }
+
+    @Override
+    public int mapPixel(int pixel) {
+        // the best match so far is packed as (distance << 32) | palette index, so comparing the longs
+        // prefers the smaller distance and then the lower index, the same tie rule as the exhaustive search
+        long best = search(pixel, 0, colors.length - 1, Long.MAX_VALUE);
+        return (int) best;
+    }
+
+    // recursive method to search a range of the tree, visiting the half on the pixel's side first
+    // the other half is skipped only when the splitting plane is strictly farther than the best match
+    // (left half values are <= the node's value and right half values are >=, so the plane distance is a lower bound)
+    private long search(int pixel, int lowIndex, int highIndex, long best) {
+        if (lowIndex > highIndex) {
+            return best;
+        }
+        int middle = (lowIndex + highIndex) >>> 1;
+        long candidate = ((long) RGB.meanSqdDist(pixel, colors[middle]) << 32) | paletteIndices[middle];
+        if (candidate < best) {
+            best = candidate;
+        }
+        int shift = splitShifts[middle];
+        int diff = ((pixel >> shift) & 0xFF) - ((colors[middle] >> shift) & 0xFF);
+        if (diff <= 0) {
+            best = search(pixel, lowIndex, middle - 1, best);
+            if ((long) diff * diff <= (best >>> 32)) {
+                best = search(pixel, middle + 1, highIndex, best);
+            }
+        } else {
+            best = search(pixel, middle + 1, highIndex, best);
+            if ((long) diff * diff <= (best >>> 32)) {
+                best = search(pixel, lowIndex, middle - 1, best);
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public boolean isExact() {
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * KMeansQuantizer class
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+// class object: refines median cut palettes with k-means (Lloyd's algorithm)
+// each iteration assigns every color to its nearest palette color and then moves each palette color to the mean of the
+// colors assigned to it, which never increases the total squared error
+// the iterations run over the distinct colors of the image weighted by their pixel counts, not over every pixel
+// a palette color that no color is assigned to keeps its place; iterations stop once no palette color moves
+public class KMeansQuantizer implements Quantizer {
+
+    private static final int MAX_ITERATIONS = 16;
+
+    // distinct colors per chunk when the assignment step is split between threads
+    private static final int CHUNK_SIZE = 1 << 14;
+
+    private int parallelism;
+
+    // constructor
+    public KMeansQuantizer(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public RGB[][] findPalettes(int[] pixels, int[] paletteSizes) {
+        RGB[][] palettes = new MedianCutQuantizer(parallelism).findPalettes(pixels, paletteSizes);
+        ColorHistogram histogram = ColorHistogram.of(pixels, 8);
+        int[] colors = histogram.getColors();
+        long[] counts = histogram.getCounts();
+
+        ForkJoinPool pool = parallelism > 1 ? ColorReducer.forkJoinPool(parallelism) : null;
+        for (int i = 0; i < palettes.length; i++) {
+            palettes[i] = refine(PaletteMapper.packPalette(palettes[i]), colors, counts, pool);
+        }
+        return palettes;
+    }
+
+    // method to run the k-means iterations on one packed palette
+    private RGB[] refine(int[] palette, int[] colors, long[] counts, ForkJoinPool pool) {
+        int chunks = Math.max(1, (colors.length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            PaletteMapper mapper = new KDTreePaletteMapper(palette);
+            int paletteLength = palette.length;
+
+            // per chunk sums of count, R, G and B for each palette color, added up in chunk order afterwards
+            long[][] chunkSums = new long[chunks][];
+            if (pool == null) {
+                for (int c = 0; c < chunks; c++) {
+                    chunkSums[c] = assign(c, mapper, paletteLength, colors, counts);
+                }
+            } else {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>(chunks);
+                for (int c = 0; c < chunks; c++) {
+                    int chunk = c;
+                    tasks.add(pool.submit(() -> {
+                        chunkSums[chunk] = assign(chunk, mapper, paletteLength, colors, counts);
+                    }));
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            }
+
+            long[] sums = new long[4 * palette.length];
+            for (long[] chunkSum : chunkSums) {
+                for (int k = 0; k < sums.length; k++) {
+                    sums[k] += chunkSum[k];
+                }
+            }
+
+            boolean moved = false;
+            int[] updated = palette.clone();
+            for (int k = 0; k < palette.length; k++) {
+                long count = sums[4 * k];
+                if (count == 0) {
+                    continue;
+                }
+                updated[k] = RGB.pack((int) ((sums[4 * k + 1] + count / 2) / count), (int) ((sums[4 * k + 2] + count / 2) / count),
+                        (int) ((sums[4 * k + 3] + count / 2) / count));
+                moved |= updated[k] != palette[k];
+            }
+            palette = updated;
+            if (!moved) {
+                break;
+            }
+        }
+
+        RGB[] refined = new RGB[palette.length];
+        for (int k = 0; k < palette.length; k++) {
+            refined[k] = RGB.fromPacked(palette[k]);
+        }
+        return refined;
+    }
+
+    // method to assign one chunk of the distinct colors and sum them per palette color
+    private static long[] assign(int chunk, PaletteMapper mapper, int paletteLength, int[] colors, long[] counts) {
+        long[] sums = new long[4 * paletteLength];
+        int end = Math.min(colors.length, (chunk + 1) * CHUNK_SIZE);
+        for (int i = chunk * CHUNK_SIZE; i < end; i++) {
+            int k = mapper.mapPixel(colors[i]);
+            long count = counts[i];
+            sums[4 * k] += count;
+            sums[4 * k + 1] += count * RGB.red(colors[i]);
+            sums[4 * k + 2] += count * RGB.green(colors[i]);
+            sums[4 * k + 3] += count * RGB.blue(colors[i]);
+        }
+        return sums;
+    }
+}
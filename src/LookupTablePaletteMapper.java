@@ -0,0 +1,55 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * LookupTablePaletteMapper class
+ */
+
+// class object: precomputed inverse color map with one entry per cell of a 2^bits per channel grid (32^3 or 64^3)
+// each cell stores the palette color nearest to the cell's center, so mapping a pixel is a single table lookup
+// approximate: pixels near the edge of a cell can get a slightly farther color than the exhaustive search would pick
+// thread-safe once constructed
+public class LookupTablePaletteMapper implements PaletteMapper {
+
+    private int bitsPerChannel;
+    private byte[] table;
+
+    // constructor
+    public LookupTablePaletteMapper(int[] palette, int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 7) {
+            throw new IllegalArgumentException("bits per channel must be between 1 and 7");
+        }
+        this.bitsPerChannel = bitsPerChannel;
+        this.table = new byte[1 << (3 * bitsPerChannel)];
+
+        // fills the table with the exact nearest color of every cell center, a plane of cells (one red value) at a time
+        NearestColorKernel exactSearch = new NearestColorKernel(palette);
+        int drop = 8 - bitsPerChannel;
+        int half = 1 << (drop - 1);
+        int cells = 1 << bitsPerChannel;
+        int[] centers = new int[cells * cells];
+        for (int R = 0; R < cells; R++) {
+            int cell = 0;
+            for (int G = 0; G < cells; G++) {
+                for (int B = 0; B < cells; B++) {
+                    centers[cell++] = RGB.pack((R << drop) | half, (G << drop) | half, (B << drop) | half);
+                }
+            }
+            exactSearch.nearest(centers, 0, table, R * centers.length, centers.length);
+        }
+    }
+
+    @Override
+    public int mapPixel(int pixel) {
+        int drop = 8 - bitsPerChannel;
+        int R = ((pixel >> 16) & 0xFF) >> drop;
+        int G = ((pixel >> 8) & 0xFF) >> drop;
+        int B = (pixel & 0xFF) >> drop;
+        return table[(R << (2 * bitsPerChannel)) | (G << bitsPerChannel) | B] & 0xFF;
+    }
+
+    @Override
+    public boolean isExact() {
+        return false;
+    }
+}
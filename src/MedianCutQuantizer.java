@@ -0,0 +1,39 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * MedianCutQuantizer class
+ */
+
+// class object: the median cut of ColorReducer behind the Quantizer interface
+// the tree is cut once for the largest size and every smaller palette is read off it (see ColorReducer.getColorPalette)
+public class MedianCutQuantizer implements Quantizer {
+
+    private int parallelism;
+
+    // constructor
+    public MedianCutQuantizer(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+    }
+
+    @Override
+    public RGB[][] findPalettes(int[] pixels, int[] paletteSizes) {
+        int largestColors = 1;
+        for (int numColors : paletteSizes) {
+            Quantizer.checkPaletteSize(numColors);
+            largestColors = Math.max(largestColors, numColors);
+        }
+        ColorReducer reducer = new ColorReducer(pixels.clone(), largestColors);
+        reducer.setParallelism(parallelism);
+        reducer.medianCut();
+
+        RGB[][] palettes = new RGB[paletteSizes.length][];
+        for (int i = 0; i < paletteSizes.length; i++) {
+            palettes[i] = reducer.getColorPalette(paletteSizes[i]);
+        }
+        return palettes;
+    }
+}
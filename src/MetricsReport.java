@@ -0,0 +1,138 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * MetricsReport class
+ */
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.*;
+import java.util.*;
+import javax.management.*;
+
+// class object: the metrics of a run: a total over every image and, when the report goes to a file, one record per image
+// the total is registered with the platform MBean server (see MBEAN_NAME), so jconsole or any JMX client can watch it
+// while a batch runs; the file is written at the end of the run, as JSON, or as CSV when its name ends in .csv
+// thread-safe: the workers of a batch add their images as they finish
+// a record limit keeps only the latest records (a server has no fixed number of images); the total still counts every one
+// Options:
+// --metrics          record metrics and register them with JMX
+// --metrics=FILE     also write them to FILE at the end of the run
+public class MetricsReport {
+
+    public static final String MBEAN_NAME = "ColorQuantization:type=QuantizationMetrics";
+
+    private final QuantizationMetrics total = new QuantizationMetrics();
+    private final Path file; // null to keep no per-image records
+    private int recordLimit = Integer.MAX_VALUE;
+
+    private final Deque<String> imageNames = new ArrayDeque<>();
+    private final Deque<QuantizationMetrics> images = new ArrayDeque<>();
+
+    // constructor; file may be null for a report that only keeps the total
+    public MetricsReport(Path file) {
+        this.file = file;
+    }
+
+    // method to build a report from the --metrics option and register its total with JMX; returns null when it is not given
+    public static MetricsReport fromOptions(Map<String, String> options) throws JMException {
+        if (!options.containsKey("metrics")) {
+            return null;
+        }
+        String metricsOption = options.get("metrics");
+        MetricsReport report = new MetricsReport(metricsOption.equals("true") ? null : Paths.get(metricsOption));
+        report.register();
+        return report;
+    }
+
+    // method to register the total with the platform MBean server, replacing the total of an earlier report
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(MBEAN_NAME);
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(total, name);
+    }
+
+    // method to keep at most recordLimit image records, dropping the oldest first
+    public synchronized void setRecordLimit(int recordLimit) {
+        if (recordLimit < 0) {
+            throw new IllegalArgumentException("record limit must not be negative");
+        }
+        this.recordLimit = recordLimit;
+        trimRecords();
+    }
+
+    // method to add the metrics of one image
+    public synchronized void add(String imageName, QuantizationMetrics metrics) {
+        total.merge(metrics);
+        if (file != null && recordLimit > 0) {
+            imageNames.addLast(imageName);
+            images.addLast(metrics);
+            trimRecords();
+        }
+    }
+
+    public QuantizationMetrics getTotal() {
+        return total;
+    }
+
+    // method to write every image record and the total to the file, if there is one
+    public synchronized void write() throws IOException {
+        if (file == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        if (file.toString().endsWith(".csv")) {
+            lines.add("image," + QuantizationMetrics.csvHeader());
+            Iterator<String> names = imageNames.iterator();
+            for (QuantizationMetrics image : images) {
+                lines.add(csvField(names.next()) + "," + image.toCsv());
+            }
+            lines.add("total," + total.toCsv());
+        } else {
+            lines.add("{\"images\":[");
+            Iterator<String> names = imageNames.iterator();
+            Iterator<QuantizationMetrics> records = images.iterator();
+            while (records.hasNext()) {
+                String metrics = records.next().toJson();
+                lines.add("{\"image\":" + jsonString(names.next()) + "," + metrics.substring(1) + (records.hasNext() ? "," : ""));
+            }
+            lines.add("],\"total\":" + total.toJson() + "}");
+        }
+        Files.write(file, lines);
+    }
+
+    // method to drop the oldest records past the record limit
+    private void trimRecords() {
+        while (images.size() > recordLimit) {
+            imageNames.removeFirst();
+            images.removeFirst();
+        }
+    }
+
+    // method to quote a string for JSON
+    private static String jsonString(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // method to quote a CSV field when it holds a comma, quote or line break
+    private static String csvField(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+}
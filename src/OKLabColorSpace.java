@@ -0,0 +1,118 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * OKLabColorSpace class
+ */
+
+// class object: the OKLab perceptual color space (Bjorn Ottosson, 2020), with L, a and b all scaled by 255 and a and b
+// offset by 128, so each fits a byte and equal steps in any channel are about equally visible
+// the transform is sRGB decoding (a 256-entry table), a matrix, a cube root per channel and a second matrix; the cube
+// roots are the expensive part, so they are found by Newton's method from a bit-level first guess (a third the cost of
+// Math.cbrt, to within 1e-12), and conversions go through a direct-mapped cache of recent colors, one per thread, so an
+// image pays for the transform about once per distinct color
+public class OKLabColorSpace implements ColorSpace {
+
+    // entries in each thread's cache of converted colors
+    private static final int CACHE_BITS = 16;
+
+    private static final double THIRD = 1.0 / 3;
+
+    // sRGB channel value to linear light
+    private static final double[] LINEAR = new double[256];
+
+    static {
+        for (int value = 0; value < 256; value++) {
+            double c = value / 255.0;
+            LINEAR[value] = c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+        }
+    }
+
+    // cache[2 * slot] holds the RGB color (-1 while empty), cache[2 * slot + 1] its converted value
+    private final ThreadLocal<int[]> caches = ThreadLocal.withInitial(() -> {
+        int[] cache = new int[2 << CACHE_BITS];
+        for (int slot = 0; slot < cache.length; slot += 2) {
+            cache[slot] = -1;
+        }
+        return cache;
+    });
+
+    @Override
+    public int fromRGB(int pixel) {
+        return fromRGB(pixel & 0xFFFFFF, caches.get());
+    }
+
+    @Override
+    public void fromRGB(int[] pixels, int pixelOffset, int[] target, int targetOffset, int length) {
+        int[] cache = caches.get();
+        for (int i = 0; i < length; i++) {
+            target[targetOffset + i] = fromRGB(pixels[pixelOffset + i] & 0xFFFFFF, cache);
+        }
+    }
+
+    // method to convert one color through the cache
+    private static int fromRGB(int pixel, int[] cache) {
+        int slot = ((pixel * 0x9E3779B1) >>> (32 - CACHE_BITS)) << 1;
+        if (cache[slot] == pixel) {
+            return cache[slot + 1];
+        }
+        int converted = convert(pixel);
+        cache[slot] = pixel;
+        cache[slot + 1] = converted;
+        return converted;
+    }
+
+    // method to run the exact transform
+    private static int convert(int pixel) {
+        double r = LINEAR[(pixel >> 16) & 0xFF];
+        double g = LINEAR[(pixel >> 8) & 0xFF];
+        double b = LINEAR[pixel & 0xFF];
+        double l = cbrt(0.4122214708 * r + 0.5363325363 * g + 0.0514459929 * b);
+        double m = cbrt(0.2119034982 * r + 0.6806995451 * g + 0.1073969566 * b);
+        double s = cbrt(0.0883024619 * r + 0.2817188376 * g + 0.6299787005 * b);
+        double L = 0.2104542553 * l + 0.7936177850 * m - 0.0040720468 * s;
+        double A = 1.9779984951 * l - 2.4285922050 * m + 0.4505937099 * s;
+        double B = 0.0259040371 * l + 0.7827717662 * m - 0.8086757660 * s;
+        return RGB.pack(clamp(255 * L), clamp(255 * A + 128), clamp(255 * B + 128));
+    }
+
+    @Override
+    public int toRGB(int color) {
+        double L = ((color >> 16) & 0xFF) / 255.0;
+        double A = (((color >> 8) & 0xFF) - 128) / 255.0;
+        double B = ((color & 0xFF) - 128) / 255.0;
+        double l = cube(L + 0.3963377774 * A + 0.2158037573 * B);
+        double m = cube(L - 0.1055613458 * A - 0.0638541728 * B);
+        double s = cube(L - 0.0894841775 * A - 1.2914855480 * B);
+        double r = 4.0767416621 * l - 3.3077115913 * m + 0.2309699292 * s;
+        double g = -1.2684380046 * l + 2.6097574011 * m - 0.3413193965 * s;
+        double b = -0.0041960863 * l - 0.7034186147 * m + 1.7076147010 * s;
+        return RGB.pack(clamp(255 * encode(r)), clamp(255 * encode(g)), clamp(255 * encode(b)));
+    }
+
+    // method to find the cube root of a value in [0, 1]: dividing the exponent by 3 gives a guess within a few percent,
+    // and each Newton step roughly squares the relative error
+    private static double cbrt(double value) {
+        double root = Double.longBitsToDouble(Double.doubleToRawLongBits(value) / 3 + 0x2A9F7893782DA1CEL);
+        for (int step = 0; step < 3; step++) {
+            root = (2 * root + value / (root * root)) * THIRD;
+        }
+        return root;
+    }
+
+    private static double cube(double value) {
+        return value * value * value;
+    }
+
+    // method to convert linear light back to an sRGB channel value in [0, 1]
+    private static double encode(double linear) {
+        if (linear <= 0.0031308) {
+            return 12.92 * Math.max(0, linear);
+        }
+        return 1.055 * Math.pow(linear, 1 / 2.4) - 0.055;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}
@@ -0,0 +1,241 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * OctreeQuantizer class
+ */
+
+import java.util.*;
+
+// class object: octree color quantization
+// each level of the tree splits the color cube in 8 by the next bit of the red, green and blue values, so the leaves
+// at depth 8 are single colors; a leaf keeps the pixel count and channel sums of the colors below it
+// pixels are added one at a time, and whenever the tree has more than LEAF_LIMIT leaves the deepest nodes with the fewest
+// pixels are merged into leaves until half that many are left, so memory stays bounded however many pixels are streamed through
+// each palette is then made by merging further until no more leaves than colors remain; the leaf means are the colors
+// nodes are kept in parallel arrays, so the tree allocates no object per node
+public class OctreeQuantizer implements Quantizer {
+
+    private static final int MAX_DEPTH = 8;
+
+    // most leaves kept while pixels are being added
+    private static final int LEAF_LIMIT = 1 << 12;
+
+    private int[] children; // 8 per node, 0 for a missing child (the root, node 0, is never a child)
+    private int[] childCounts;
+    private int[] levels;
+    private boolean[] leaves;
+    private long[] counts; // pixels in the node's subtree
+    private long[] sumR;
+    private long[] sumG;
+    private long[] sumB;
+    private int nodeCount;
+    private int[] freeNodes; // nodes released by merging, reused before new ones
+    private int freeCount;
+    private int leafCount;
+
+    @Override
+    public RGB[][] findPalettes(int[] pixels, int[] paletteSizes) {
+        for (int numColors : paletteSizes) {
+            Quantizer.checkPaletteSize(numColors);
+        }
+        reset();
+        add(pixels, 0, pixels.length);
+        return reducePalettes(paletteSizes);
+    }
+
+    // method to read off the palette of every size from the pixels added so far
+    public RGB[][] reducePalettes(int[] paletteSizes) {
+        // the largest palette first, since merging only goes one way
+        Integer[] order = new Integer[paletteSizes.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(paletteSizes[b], paletteSizes[a]));
+
+        RGB[][] palettes = new RGB[paletteSizes.length][];
+        for (int i : order) {
+            palettes[i] = reduceTo(paletteSizes[i]);
+        }
+        return palettes;
+    }
+
+    // method to start an empty tree
+    public void reset() {
+        int capacity = 1024;
+        children = new int[8 * capacity];
+        childCounts = new int[capacity];
+        levels = new int[capacity];
+        leaves = new boolean[capacity];
+        counts = new long[capacity];
+        sumR = new long[capacity];
+        sumG = new long[capacity];
+        sumB = new long[capacity];
+        freeNodes = new int[capacity];
+        freeCount = 0;
+        nodeCount = 1; // the root
+        leafCount = 0;
+    }
+
+    // method to add a run of packed pixels to the tree (call reset first)
+    public void add(int[] pixels, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            addPixel(pixels[i]);
+            if (leafCount > LEAF_LIMIT) {
+                mergeDownTo(LEAF_LIMIT / 2);
+            }
+        }
+    }
+
+    // method to merge the tree down to at most numColors leaves and read off their mean colors
+    public RGB[] reduceTo(int numColors) {
+        mergeDownTo(numColors);
+        RGB[] palette = new RGB[numColors];
+        int filled = collectLeaves(0, palette, 0);
+        return Quantizer.fillOut(palette, filled);
+    }
+
+    // method to walk a pixel down the tree, creating nodes as needed, and count it at the leaf it reaches
+    private void addPixel(int pixel) {
+        int R = RGB.red(pixel);
+        int G = RGB.green(pixel);
+        int B = RGB.blue(pixel);
+        int node = 0;
+        while (true) {
+            counts[node]++;
+            if (leaves[node]) {
+                sumR[node] += R;
+                sumG[node] += G;
+                sumB[node] += B;
+                return;
+            }
+            int shift = 7 - levels[node];
+            int octant = (((R >> shift) & 1) << 2) | (((G >> shift) & 1) << 1) | ((B >> shift) & 1);
+            int child = children[8 * node + octant];
+            if (child == 0) {
+                child = newNode(levels[node] + 1);
+                children[8 * node + octant] = child;
+                childCounts[node]++;
+            }
+            node = child;
+        }
+    }
+
+    // method to take a node from the free list or the end of the arrays
+    private int newNode(int level) {
+        int node;
+        if (freeCount > 0) {
+            node = freeNodes[--freeCount];
+        } else {
+            if (nodeCount == levels.length) {
+                grow();
+            }
+            node = nodeCount++;
+        }
+        Arrays.fill(children, 8 * node, 8 * node + 8, 0);
+        childCounts[node] = 0;
+        levels[node] = level;
+        leaves[node] = level == MAX_DEPTH;
+        counts[node] = 0;
+        sumR[node] = 0;
+        sumG[node] = 0;
+        sumB[node] = 0;
+        if (leaves[node]) {
+            leafCount++;
+        }
+        return node;
+    }
+
+    private void grow() {
+        int capacity = 2 * levels.length;
+        children = Arrays.copyOf(children, 8 * capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        levels = Arrays.copyOf(levels, capacity);
+        leaves = Arrays.copyOf(leaves, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        sumR = Arrays.copyOf(sumR, capacity);
+        sumG = Arrays.copyOf(sumG, capacity);
+        sumB = Arrays.copyOf(sumB, capacity);
+        freeNodes = Arrays.copyOf(freeNodes, capacity);
+    }
+
+    // method to merge nodes into leaves until the tree has at most the target number of leaves
+    // only nodes at the deepest level that still has inner nodes are merged (their children are all leaves), those with
+    // the fewest pixels first, skipping any whose merge would take the tree below the target while another one fits
+    // ties go to the lower node id, so the result depends on nothing but the pixels
+    private void mergeDownTo(int targetLeaves) {
+        while (leafCount > targetLeaves) {
+            int deepestLevel = -1;
+            for (int node = 0; node < nodeCount; node++) {
+                if (isInner(node)) {
+                    deepestLevel = Math.max(deepestLevel, levels[node]);
+                }
+            }
+            List<Integer> candidates = new ArrayList<>();
+            for (int node = 0; node < nodeCount; node++) {
+                if (isInner(node) && levels[node] == deepestLevel) {
+                    candidates.add(node);
+                }
+            }
+            candidates.sort(Comparator.comparingLong((Integer node) -> counts[node]).thenComparingInt(node -> node));
+
+            boolean merged = false;
+            for (int node : candidates) {
+                if (leafCount <= targetLeaves) {
+                    break;
+                }
+                if (leafCount - (childCounts[node] - 1) >= targetLeaves) {
+                    merge(node);
+                    merged = true;
+                }
+            }
+            // every remaining merge overshoots the target, so the smallest node is merged and the palette has fewer colors
+            if (!merged && leafCount > targetLeaves) {
+                merge(candidates.get(0));
+            }
+        }
+    }
+
+    // whether a node is an inner node (not a leaf and not released)
+    private boolean isInner(int node) {
+        return !leaves[node] && childCounts[node] > 0;
+    }
+
+    // method to merge the children of a node, which must all be leaves, into it
+    private void merge(int node) {
+        for (int octant = 0; octant < 8; octant++) {
+            int child = children[8 * node + octant];
+            if (child != 0) {
+                sumR[node] += sumR[child];
+                sumG[node] += sumG[child];
+                sumB[node] += sumB[child];
+                leaves[child] = false;
+                childCounts[child] = -1; // marks a released node, skipped by the scans above
+                freeNodes[freeCount++] = child;
+                children[8 * node + octant] = 0;
+            }
+        }
+        leafCount -= childCounts[node] - 1;
+        childCounts[node] = 0;
+        leaves[node] = true;
+    }
+
+    // recursive method to write the mean color of every leaf below a node into the palette, in octant order
+    private int collectLeaves(int node, RGB[] palette, int filled) {
+        if (leaves[node]) {
+            if (counts[node] > 0 && filled < palette.length) {
+                long count = counts[node];
+                palette[filled++] = new RGB((int) ((sumR[node] + count / 2) / count), (int) ((sumG[node] + count / 2) / count),
+                        (int) ((sumB[node] + count / 2) / count));
+            }
+            return filled;
+        }
+        for (int octant = 0; octant < 8; octant++) {
+            int child = children[8 * node + octant];
+            if (child != 0) {
+                filled = collectLeaves(child, palette, filled);
+            }
+        }
+        return filled;
+    }
+}
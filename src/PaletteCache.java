@@ -0,0 +1,276 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * PaletteCache class
+ */
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// class object: a two-tier cache of finished palettes, so an image quantized before goes straight to palette mapping
+// a palette is keyed by a 64-bit hash of the image's pixels and size, a description of every setting that decides the
+// palette (see QuantizationOptions.describePalette) and the palette size
+// tier 1 is an LRU map in memory holding at most a fixed number of bytes of palettes (an estimate of the entry, key,
+// array and colors of each, so small palettes take less of it than 256-color ones); tier 2, when a directory is given, keeps
+// one small binary file per palette there so palettes survive between runs (a disk hit is copied into memory)
+// file format: int magic, UTF key (checked on read, so a hash collision in the file name is a miss), unsigned byte count
+// minus one, then 3 bytes (R, G, B) per color
+// the disk tier is best effort: a file that cannot be read or written is counted as a miss and otherwise ignored
+// every method is thread-safe, so one cache can be shared by the workers of a batch
+// Options:
+// --cache             cache palettes in memory only (useful within a batch)
+// --cache=DIR         also keep them in DIR between runs
+// --cache-memory=KB   most memory the palettes kept in memory take (default 2048, about 256 palettes of 256 colors)
+public class PaletteCache {
+
+    public static final long DEFAULT_MEMORY_BYTES = 2048L << 10;
+
+    private static final int MAGIC = 0x50414C31; // "PAL1"
+
+    private final long memoryLimit;
+    private final Path directory; // null for a memory-only cache
+    private final LinkedHashMap<String, RGB[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes; // footprint of the palettes in memory; guarded by memory
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    // constructor; directory may be null for a memory-only cache
+    // the palette used last is always kept, even when it alone is larger than the limit
+    public PaletteCache(long memoryLimit, Path directory) throws IOException {
+        if (memoryLimit < 1) {
+            throw new IllegalArgumentException("the memory limit of the cache must be positive");
+        }
+        this.memoryLimit = memoryLimit;
+        this.directory = directory;
+        if (directory != null) {
+            Files.createDirectories(directory);
+        }
+    }
+
+    // method to build a cache from the --cache and --cache-memory options; returns null when --cache is not given
+    public static PaletteCache fromOptions(QuantizationOptions quantizationOptions, Map<String, String> options) throws IOException {
+        if (!options.containsKey("cache")) {
+            return null;
+        }
+        if (quantizationOptions.getMapperStrategy().startsWith("boxtree") || quantizationOptions.isDirectMapping()) {
+            throw new IllegalArgumentException("The " + quantizationOptions.getMapperStrategy() + " mapper needs the box tree of a fresh median cut and cannot be combined with --cache.");
+        }
+        if (quantizationOptions.isStreaming()) {
+            throw new IllegalArgumentException("Palettes are cached by the hash of every pixel, so --cache cannot be combined with --streaming.");
+        }
+        long memoryLimit = DEFAULT_MEMORY_BYTES;
+        if (options.containsKey("cache-memory")) {
+            memoryLimit = QuantizationOptions.parsePositive(options.get("cache-memory"), "--cache-memory") * 1024L;
+        }
+        String cacheOption = options.get("cache");
+        return new PaletteCache(memoryLimit, cacheOption.equals("true") ? null : Paths.get(cacheOption));
+    }
+
+    // method to hash the pixels of an image together with its size
+    // four independent multiply-xor lanes keep the loop from waiting on a single multiplication chain
+    public static long contentHash(int[] pixels, int width, int height) {
+        long lane0 = 0x9E3779B97F4A7C15L;
+        long lane1 = 0xC2B2AE3D27D4EB4FL;
+        long lane2 = 0x165667B19E3779F9L;
+        long lane3 = 0x27D4EB2F165667C5L;
+        int i = 0;
+        for (; i + 3 < pixels.length; i += 4) {
+            lane0 = (lane0 ^ pixels[i]) * 0x100000001B3L;
+            lane1 = (lane1 ^ pixels[i + 1]) * 0x100000001B3L;
+            lane2 = (lane2 ^ pixels[i + 2]) * 0x100000001B3L;
+            lane3 = (lane3 ^ pixels[i + 3]) * 0x100000001B3L;
+        }
+        for (; i < pixels.length; i++) {
+            lane0 = (lane0 ^ pixels[i]) * 0x100000001B3L;
+        }
+        long hash = mix(lane0) ^ Long.rotateLeft(mix(lane1), 16) ^ Long.rotateLeft(mix(lane2), 32) ^ Long.rotateLeft(mix(lane3), 48);
+        return mix(hash ^ ((long) width << 32 | (height & 0xFFFFFFFFL)));
+    }
+
+    // the finalizer of MurmurHash3, so every input bit affects every output bit
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // method to look up the palette of every size; returns null unless all of them are cached
+    public RGB[][] getPalettes(long contentHash, String settings, int[] paletteSizes) {
+        RGB[][] palettes = new RGB[paletteSizes.length][];
+        boolean complete = true;
+        for (int i = 0; i < paletteSizes.length; i++) {
+            palettes[i] = get(contentHash, settings, paletteSizes[i]);
+            complete &= palettes[i] != null;
+        }
+        return complete ? palettes : null;
+    }
+
+    // method to store the palette of every size
+    public void putPalettes(long contentHash, String settings, int[] paletteSizes, RGB[][] palettes) {
+        for (int i = 0; i < paletteSizes.length; i++) {
+            put(contentHash, settings, paletteSizes[i], palettes[i]);
+        }
+    }
+
+    // method to look up one palette, in memory first and then on disk; returns null on a miss
+    public RGB[] get(long contentHash, String settings, int numColors) {
+        String key = key(contentHash, settings, numColors);
+        synchronized (memory) {
+            RGB[] palette = memory.get(key);
+            if (palette != null) {
+                memoryHits.incrementAndGet();
+                return palette.clone();
+            }
+        }
+        RGB[] palette = directory == null ? null : readFile(key);
+        if (palette == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        diskHits.incrementAndGet();
+        synchronized (memory) {
+            store(key, palette);
+        }
+        return palette.clone();
+    }
+
+    // method to store one palette in memory and, with a directory, on disk
+    public void put(long contentHash, String settings, int numColors, RGB[] palette) {
+        if (palette.length != numColors) {
+            throw new IllegalArgumentException("the palette does not have " + numColors + " colors");
+        }
+        String key = key(contentHash, settings, numColors);
+        synchronized (memory) {
+            store(key, palette.clone());
+        }
+        if (directory != null) {
+            writeFile(key, palette);
+        }
+    }
+
+    // method to put a palette in memory and drop the palettes used least recently until the rest fit the limit
+    // the caller holds the lock on memory
+    private void store(String key, RGB[] palette) {
+        RGB[] previous = memory.put(key, palette);
+        memoryBytes += footprint(key, palette);
+        if (previous != null) {
+            memoryBytes -= footprint(key, previous);
+        }
+        Iterator<Map.Entry<String, RGB[]>> eldest = memory.entrySet().iterator();
+        while (memoryBytes > memoryLimit && memory.size() > 1) {
+            Map.Entry<String, RGB[]> entry = eldest.next();
+            memoryBytes -= footprint(entry.getKey(), entry.getValue());
+            eldest.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    // method to estimate the bytes a palette takes in memory: its map entry, its key string, its array and one RGB object
+    // per color (compressed references)
+    private static long footprint(String key, RGB[] palette) {
+        return 40 + 40 + key.length() + 16 + 28L * palette.length;
+    }
+
+    private static String key(long contentHash, String settings, int numColors) {
+        return String.format("%016x/%s/%d", contentHash, settings, numColors);
+    }
+
+    // method to name the file of a key: the content hash, a hash of the rest of the key and the palette size
+    private Path file(String key) {
+        String[] parts = key.split("/");
+        return directory.resolve(String.format("%s-%08x-%s.pal", parts[0], key.hashCode(), parts[parts.length - 1]));
+    }
+
+    // method to read a palette file; returns null when it is missing, unreadable or belongs to another key
+    private RGB[] readFile(String key) {
+        Path file = file(key);
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key)) {
+                return null;
+            }
+            RGB[] palette = new RGB[in.readUnsignedByte() + 1];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = new RGB(in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte());
+            }
+            return palette;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // method to write a palette file through a temporary file, so a reader never sees a partly written one
+    private void writeFile(String key, RGB[] palette) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, "palette", ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+                out.writeInt(MAGIC);
+                out.writeUTF(key);
+                out.writeByte(palette.length - 1);
+                for (RGB color : palette) {
+                    out.writeByte(color.getR());
+                    out.writeByte(color.getG());
+                    out.writeByte(color.getB());
+                }
+            }
+            Files.move(temporary, file(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            if (temporary != null) {
+                try {
+                    Files.deleteIfExists(temporary);
+                } catch (IOException ignored) {
+                    // nothing more can be done about a temporary file that cannot be removed
+                }
+            }
+        }
+    }
+
+    // access methods for the counters
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    // method to get the number of palettes held in memory
+    public int getMemorySize() {
+        synchronized (memory) {
+            return memory.size();
+        }
+    }
+
+    // method to get the estimated bytes taken by the palettes held in memory
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return memoryBytes;
+        }
+    }
+
+    // method to summarize the counters in one line
+    public String getSummary() {
+        return String.format("Palette cache: %d memory hits, %d disk hits, %d misses, %d evictions", getMemoryHits(), getDiskHits(),
+                getMisses(), getEvictions());
+    }
+}
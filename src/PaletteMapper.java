@@ -0,0 +1,78 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * PaletteMapper interface
+ */
+
+// interface: assigns each pixel (packed as 0xRRGGBB) the index of a color in a fixed palette
+// exact mappers always return the index the exhaustive search returns: the closest color by mean squared distance,
+// and the lowest index when several colors are equally close
+public interface PaletteMapper {
+
+    // names accepted by create()
+    String[] STRATEGIES = {"exhaustive", "kdtree", "cache", "lut5", "lut6", "boxtree", "boxtree-exact"};
+
+    // method to find the palette index for one packed pixel
+    int mapPixel(int pixel);
+
+    // whether mapPixel always agrees with the exhaustive search
+    boolean isExact();
+
+    // whether one instance may be used by several threads at once
+    default boolean isThreadSafe() {
+        return true;
+    }
+
+    // method to map a run of packed pixels to palette indices
+    default void mapPixels(int[] pixels, int pixelOffset, byte[] indices, int indexOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            indices[indexOffset + i] = (byte) mapPixel(pixels[pixelOffset + i]);
+        }
+    }
+
+    // method to build a mapper for a packed palette by strategy name
+    // exhaustive: tests every palette color (the reference)
+    // kdtree: exact nearest-color search in a k-d tree over the palette
+    // cache: kdtree behind a cache keyed by the pixel's 24-bit color (exact, not thread-safe)
+    // lut5, lut6: precomputed 32^3 or 64^3 inverse color map (approximate)
+    // boxtree: color of the median cut box the pixel falls in, found by walking the split tree (approximate)
+    // boxtree-exact: split tree walk refined by searching neighboring boxes (exact)
+    // the boxtree strategies need the split tree the palette came from; the others ignore it (it may be null)
+    static PaletteMapper create(String strategy, int[] palette, SplitTree tree) {
+        switch (strategy) {
+            case "boxtree":
+            case "boxtree-exact":
+                if (tree == null) {
+                    throw new IllegalArgumentException(strategy + " needs the split tree of the palette");
+                }
+                return new BoxTreePaletteMapper(tree, palette, strategy.equals("boxtree-exact"));
+            case "exhaustive":
+                return new ExhaustivePaletteMapper(palette);
+            case "kdtree":
+                return new KDTreePaletteMapper(palette);
+            case "cache":
+                return new CachingPaletteMapper(new KDTreePaletteMapper(palette));
+            case "lut5":
+                return new LookupTablePaletteMapper(palette, 5);
+            case "lut6":
+                return new LookupTablePaletteMapper(palette, 6);
+            default:
+                throw new IllegalArgumentException("unknown palette mapper: " + strategy);
+        }
+    }
+
+    // method to build a mapper that does not need a split tree
+    static PaletteMapper create(String strategy, int[] palette) {
+        return create(strategy, palette, null);
+    }
+
+    // method to pack an RGB palette the same way as the pixels
+    static int[] packPalette(RGB[] palette) {
+        int[] packedPalette = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            packedPalette[i] = palette[i].toPacked();
+        }
+        return packedPalette;
+    }
+}
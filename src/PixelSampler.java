@@ -0,0 +1,160 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * PixelSampler class
+ */
+
+import java.util.*;
+
+// class object: picks a fixed-size subset of an image's pixels for median cut to build the palette from, so the time to
+// find the palette depends on the sample budget instead of the image size
+// methods:
+// stride: every k-th pixel in row-major order (deterministic, no randomness)
+// reservoir: a uniform random sample of a stream of pixels whose length is not known in advance (see Reservoir)
+// stratified: the image is divided into a grid of about budget cells and one random pixel is taken from each cell,
+//   so every region of the image is represented
+// the random methods take a seed, so the same input and seed always give the same sample
+// when the budget is at least the number of pixels, every pixel is returned
+public class PixelSampler {
+
+    // names accepted by sample()
+    public static final String[] METHODS = {"stride", "reservoir", "stratified"};
+
+    // seed used when none is given
+    public static final long DEFAULT_SEED = 0x5EED;
+
+    // class object: a reservoir sample that pixels can be added to a block at a time, for example from
+    // RawImageReader.streamRows, without keeping more than the budget in memory
+    // uses the skip-based reservoir algorithm (Li's algorithm L): the number of pixels to skip before the next replacement
+    // is drawn directly, so the random work grows with the budget and only logarithmically with the number of pixels
+    public static class Reservoir {
+
+        private int[] sample;
+        private int budget;
+        private long seen; // pixels offered so far
+        private long nextReplaced; // position in the stream of the next pixel to go into the reservoir
+        private double w;
+        private SplittableRandom random;
+
+        // constructor
+        public Reservoir(int budget, long seed) {
+            if (budget < 1) {
+                throw new IllegalArgumentException("sample budget must be at least 1");
+            }
+            this.budget = budget;
+            this.sample = new int[budget];
+            this.random = new SplittableRandom(seed);
+            this.w = Math.exp(Math.log(nextDouble()) / budget);
+            this.nextReplaced = budget + skip();
+        }
+
+        // method to offer a run of packed pixels to the sample
+        public void add(int[] pixels, int offset, int length) {
+            int i = 0;
+            // the first pixels fill the reservoir
+            while (i < length && seen < budget) {
+                sample[(int) seen++] = pixels[offset + i++];
+            }
+            // then only the pixels drawn to replace a random entry are looked at
+            long end = seen + (length - i);
+            while (nextReplaced < end) {
+                sample[random.nextInt(budget)] = pixels[offset + (int) (nextReplaced - seen) + i];
+                w *= Math.exp(Math.log(nextDouble()) / budget);
+                nextReplaced += skip() + 1;
+            }
+            seen = end;
+        }
+
+        // method to get the sample so far (shorter than the budget if fewer pixels were offered)
+        public int[] getSample() {
+            return Arrays.copyOf(sample, (int) Math.min(seen, budget));
+        }
+
+        // number of pixels to pass over before the next replacement
+        private long skip() {
+            return (long) Math.floor(Math.log(nextDouble()) / Math.log(1 - w));
+        }
+
+        // uniform double in (0, 1), so its logarithm is finite
+        private double nextDouble() {
+            double value;
+            do {
+                value = random.nextDouble();
+            } while (value == 0);
+            return value;
+        }
+    }
+
+    // method to sample a row-major image with the named method
+    public static int[] sample(String method, int[] pixels, int width, int height, int budget, long seed) {
+        switch (method) {
+            case "stride":
+                return stride(pixels, budget);
+            case "reservoir":
+                Reservoir reservoir = new Reservoir(budget, seed);
+                reservoir.add(pixels, 0, pixels.length);
+                return reservoir.getSample();
+            case "stratified":
+                return stratified(pixels, width, height, budget, seed);
+            default:
+                throw new IllegalArgumentException("unknown sampling method: " + method);
+        }
+    }
+
+    // method to take every k-th pixel, starting in the middle of the first run of k, so the sample has at most budget pixels
+    public static int[] stride(int[] pixels, int budget) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("sample budget must be at least 1");
+        }
+        if (budget >= pixels.length) {
+            return pixels.clone();
+        }
+        int step = (pixels.length + budget - 1) / budget;
+        int[] sample = new int[(pixels.length - step / 2 + step - 1) / step];
+        for (int s = 0, p = step / 2; s < sample.length; s++, p += step) {
+            sample[s] = pixels[p];
+        }
+        return sample;
+    }
+
+    // method to take one random pixel from each cell of a grid laid over the image, with about budget square cells
+    public static int[] stratified(int[] pixels, int width, int height, int budget, long seed) {
+        if (budget < 1) {
+            throw new IllegalArgumentException("sample budget must be at least 1");
+        }
+        if ((long) width * height != pixels.length) {
+            throw new IllegalArgumentException("width and height do not match the number of pixels");
+        }
+        if (budget >= pixels.length) {
+            return pixels.clone();
+        }
+        // side of a cell, rounded up so the grid never has more cells than the budget
+        int cellSide = (int) Math.ceil(Math.sqrt((double) pixels.length / budget));
+        while ((long) ceilDiv(width, cellSide) * ceilDiv(height, cellSide) > budget) {
+            cellSide++;
+        }
+        int cellsAcross = ceilDiv(width, cellSide);
+        int cellsDown = ceilDiv(height, cellSide);
+
+        SplittableRandom random = new SplittableRandom(seed);
+        int[] sample = new int[cellsAcross * cellsDown];
+        int s = 0;
+        for (int cy = 0; cy < cellsDown; cy++) {
+            int top = cy * cellSide;
+            int cellHeight = Math.min(cellSide, height - top);
+            for (int cx = 0; cx < cellsAcross; cx++) {
+                int left = cx * cellSide;
+                int cellWidth = Math.min(cellSide, width - left);
+                int y = top + random.nextInt(cellHeight);
+                int x = left + random.nextInt(cellWidth);
+                sample[s++] = pixels[y * width + x];
+            }
+        }
+        return sample;
+    }
+
+    private static int ceilDiv(int a, int b) {
+        return (a + b - 1) / b;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationMetrics class
+ */
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// class object: the time spent in each stage of quantizing images, and counters of the work done
+// a stage is timed around a whole call (one image, or one block of rows while mapping), never per pixel, and the counters
+// are added once per image, so recording costs a few System.nanoTime calls per block and is always on
+// every method is thread-safe: the workers of a batch can record into one instance (LongAdder keeps them from contending)
+public class QuantizationMetrics implements QuantizationMetricsMXBean {
+
+    // names of the stages
+    // read: reading the .raw file; convert: converting pixels into the color space of --color-space; sample: drawing the
+    // palette sample; histogram: building the color histogram, or copying the pixels median cut sorts; split: finding the
+    // palette boxes (median cut, or the whole engine for the others); palette: reading the palettes off the box tree and
+    // the palette cache lookups; map: mapping pixels to palette indices without dithering; dither: mapping with
+    // dithering; encode: writing the .bmp files
+    public static final String[] STAGES = {"read", "convert", "sample", "histogram", "split", "palette", "map", "dither", "encode"};
+    public static final int READ = 0, CONVERT = 1, SAMPLE = 2, HISTOGRAM = 3, SPLIT = 4, PALETTE = 5, MAP = 6, DITHER = 7, ENCODE = 8;
+
+    // names of the counters
+    // distinctColors is only known in histogram mode; mappingLookups counts pixels mapped once per palette size;
+    // mapperCacheHits counts the lookups answered by the cache mapper's table; the palette cache counts are per palette
+    public static final String[] COUNTERS = {"images", "pixels", "distinctColors", "boxSplits", "mappingLookups", "mapperCacheHits",
+            "paletteCacheHits", "paletteCacheMisses"};
+    public static final int IMAGES = 0, PIXELS = 1, DISTINCT_COLORS = 2, BOX_SPLITS = 3, MAPPING_LOOKUPS = 4, MAPPER_CACHE_HITS = 5,
+            PALETTE_CACHE_HITS = 6, PALETTE_CACHE_MISSES = 7;
+
+    private final LongAdder[] stageNanos = new LongAdder[STAGES.length];
+    private final LongAdder[] counters = new LongAdder[COUNTERS.length];
+
+    // constructor
+    public QuantizationMetrics() {
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            stageNanos[stage] = new LongAdder();
+        }
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            counters[counter] = new LongAdder();
+        }
+    }
+
+    // method to add time to a stage
+    public void addTime(int stage, long nanos) {
+        stageNanos[stage].add(nanos);
+    }
+
+    // method to add time to a stage, measured from a System.nanoTime() value; returns the current time so consecutive
+    // stages can be timed from one reading each
+    public long addTimeSince(int stage, long startNanos) {
+        long now = System.nanoTime();
+        stageNanos[stage].add(now - startNanos);
+        return now;
+    }
+
+    // method to add to a counter
+    public void add(int counter, long amount) {
+        counters[counter].add(amount);
+    }
+
+    public long getStageNanos(int stage) {
+        return stageNanos[stage].sum();
+    }
+
+    public long getCount(int counter) {
+        return counters[counter].sum();
+    }
+
+    // method to add every timing and counter of another instance to this one
+    public void merge(QuantizationMetrics other) {
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            stageNanos[stage].add(other.getStageNanos(stage));
+        }
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            counters[counter].add(other.getCount(counter));
+        }
+    }
+
+    @Override
+    public Map<String, Long> getStageMillis() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            millis.put(STAGES[stage], getStageNanos(stage) / 1000000);
+        }
+        return millis;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            values.put(COUNTERS[counter], getCount(counter));
+        }
+        return values;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder adder : stageNanos) {
+            adder.reset();
+        }
+        for (LongAdder adder : counters) {
+            adder.reset();
+        }
+    }
+
+    // method to write the timings (in nanoseconds) and counters as a JSON object
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{\"stageNanos\":{");
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            json.append(stage == 0 ? "" : ",").append('"').append(STAGES[stage]).append("\":").append(getStageNanos(stage));
+        }
+        json.append("},\"counters\":{");
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            json.append(counter == 0 ? "" : ",").append('"').append(COUNTERS[counter]).append("\":").append(getCount(counter));
+        }
+        return json.append("}}").toString();
+    }
+
+    // method to get the CSV header matching toCsv: a stage_ns column per stage, then a column per counter
+    public static String csvHeader() {
+        StringBuilder header = new StringBuilder();
+        for (String stage : STAGES) {
+            header.append(header.length() == 0 ? "" : ",").append(stage).append("_ns");
+        }
+        for (String counter : COUNTERS) {
+            header.append(',').append(counter);
+        }
+        return header.toString();
+    }
+
+    // method to write the timings and counters as one CSV row
+    public String toCsv() {
+        StringBuilder row = new StringBuilder();
+        for (int stage = 0; stage < STAGES.length; stage++) {
+            row.append(stage == 0 ? "" : ",").append(getStageNanos(stage));
+        }
+        for (int counter = 0; counter < COUNTERS.length; counter++) {
+            row.append(',').append(getCount(counter));
+        }
+        return row.toString();
+    }
+}
@@ -0,0 +1,22 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationMetricsMXBean interface
+ */
+
+import java.util.*;
+
+// interface: the management view of QuantizationMetrics, registered with JMX by MetricsReport
+// every map is keyed by stage or counter name, in the order of QuantizationMetrics.STAGES and COUNTERS
+public interface QuantizationMetricsMXBean {
+
+    // method to get the total time spent in each stage, in milliseconds
+    Map<String, Long> getStageMillis();
+
+    // method to get every counter
+    Map<String, Long> getCounters();
+
+    // method to set every timing and counter back to 0
+    void reset();
+}
@@ -0,0 +1,443 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationOptions class
+ */
+
+import java.util.*;
+
+// class object: the settings for quantizing one image, parsed from the palette size argument and the --name=value options
+// parse() throws IllegalArgumentException with a message meant for the person running the program; settings made with the
+// setters are checked against each other by validate(), which parse() and QuantizationPipeline both call
+public class QuantizationOptions {
+
+    private int[] paletteSizes; // every palette size to output, in increasing order
+    private int histogramBits; // bits kept per channel for histogram mode (8 for exact), 0 when median cut runs on raw pixels
+    private int parallelism = 1; // number of threads for median cut
+    private String mapperStrategy = "cache"; // see PaletteMapper, or "direct"
+    private String quantizer = "mediancut"; // see Quantizer
+    private String splitOrder = "balanced"; // see ColorReducer
+    private String boxColor = "midpoint"; // see ColorReducer
+    private String dither = "none"; // see ImageRemapper
+    private String sampleMethod; // see PixelSampler, null to build the palette from every pixel
+    private int sampleBudget = 1 << 16; // most pixels sampled for the palette
+    private boolean reportQuality; // whether to measure each palette against one built from every pixel
+    private String bmpFormat = "packed"; // see BMPWriter
+    private String colorSpace = "rgb"; // see ColorSpace
+    private boolean streaming; // whether the file is read twice in chunks instead of held in memory (see QuantizationPipeline)
+
+    // constructor for a single palette size with every other setting at its default
+    public QuantizationOptions(int numColors) {
+        if (numColors < 1 || numColors > 256) {
+            throw new IllegalArgumentException("Please enter a palette size from 1 to 256.");
+        }
+        this.paletteSizes = new int[] {numColors};
+    }
+
+    // method to parse the palette size argument (number, list in form: a,b,c or range of powers of 2 in form: small-large)
+    // and the options
+    public static QuantizationOptions parse(String paletteSizeArg, Map<String, String> options) {
+        QuantizationOptions parsed = new QuantizationOptions(1);
+
+        // optional histogram mode
+        String histogramOption = options.get("histogram");
+        if (histogramOption != null) {
+            if (histogramOption.equals("exact")) {
+                parsed.histogramBits = 8;
+            } else if (histogramOption.equals("6") || histogramOption.equals("5")) {
+                parsed.histogramBits = Integer.parseInt(histogramOption);
+            } else {
+                throw new IllegalArgumentException("Please enter exact, 6 or 5 for the --histogram option.");
+            }
+        }
+
+        // optional number of threads for median cut
+        if (options.containsKey("parallelism")) {
+            parsed.parallelism = parsePositive(options.get("parallelism"), "--parallelism");
+        }
+
+        // optional strategy for assigning pixels to palette colors
+        parsed.mapperStrategy = options.getOrDefault("mapper", "cache");
+        if (!parsed.isDirectMapping() && !Arrays.asList(PaletteMapper.STRATEGIES).contains(parsed.mapperStrategy)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", PaletteMapper.STRATEGIES) + ", direct for the --mapper option.");
+        }
+
+        // optional palette engine
+        parsed.quantizer = options.getOrDefault("quantizer", "mediancut");
+        if (!Arrays.asList(Quantizer.ENGINES).contains(parsed.quantizer)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", Quantizer.ENGINES) + " for the --quantizer option.");
+        }
+
+        // optional order in which median cut splits its boxes
+        parsed.splitOrder = options.getOrDefault("split", "balanced");
+        if (!Arrays.asList(ColorReducer.SPLIT_ORDERS).contains(parsed.splitOrder)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", ColorReducer.SPLIT_ORDERS) + " for the --split option.");
+        }
+
+        // optional color that stands for each median cut box
+        parsed.boxColor = options.getOrDefault("box-color", "midpoint");
+        if (!Arrays.asList(ColorReducer.BOX_COLORS).contains(parsed.boxColor)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", ColorReducer.BOX_COLORS) + " for the --box-color option.");
+        }
+
+        // optional dithering while mapping
+        parsed.dither = options.getOrDefault("dither", "none");
+        if (!Arrays.asList(ImageRemapper.DITHER_MODES).contains(parsed.dither)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", ImageRemapper.DITHER_MODES) + " for the --dither option.");
+        }
+
+        // optional sampling of the pixels the palette is built from
+        if (options.containsKey("sample")) {
+            parsed.sampleMethod = options.get("sample");
+            if (!Arrays.asList(PixelSampler.METHODS).contains(parsed.sampleMethod)) {
+                throw new IllegalArgumentException("Please enter one of " + String.join(", ", PixelSampler.METHODS) + " for the --sample option.");
+            }
+        }
+        if (options.containsKey("sample-budget")) {
+            parsed.sampleBudget = parsePositive(options.get("sample-budget"), "--sample-budget");
+        }
+        parsed.reportQuality = options.containsKey("quality");
+
+        // optional color space the palette is found and pixels are mapped in
+        parsed.colorSpace = options.getOrDefault("color-space", "rgb");
+        if (!Arrays.asList(ColorSpace.SPACES).contains(parsed.colorSpace)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", ColorSpace.SPACES) + " for the --color-space option.");
+        }
+
+        // optional layout of the output files
+        parsed.bmpFormat = options.getOrDefault("bmp", "packed");
+        if (!Arrays.asList(BMPWriter.FORMATS).contains(parsed.bmpFormat)) {
+            throw new IllegalArgumentException("Please enter one of " + String.join(", ", BMPWriter.FORMATS) + " for the --bmp option.");
+        }
+
+        // optional two-pass mode for images too large to hold in memory
+        parsed.streaming = options.containsKey("streaming");
+        parsed.validate();
+
+        // number, list or range for the palette size
+        // Example: 8, 12,24,48 or 8-32 (the endpoints of a range are powers of 2, and so is every size output for it)
+        if (paletteSizeArg.contains(",")) {
+            TreeSet<Integer> sizes = new TreeSet<>();
+            for (String size : paletteSizeArg.split(",")) {
+                sizes.add(parsePaletteSize(size.trim()));
+            }
+            parsed.paletteSizes = sizes.stream().mapToInt(Integer::intValue).toArray();
+            return parsed;
+        }
+        String[] paletteSizeArgs = paletteSizeArg.split("-", 2);
+        if (paletteSizeArgs.length == 1) {
+            parsed.paletteSizes = new int[] {parsePaletteSize(paletteSizeArgs[0])};
+            return parsed;
+        }
+        int[] paletteSizeArray = new int[paletteSizeArgs.length];
+        for (int i = 0; i < paletteSizeArgs.length; i++) {
+            int sizeInt = parsePaletteSize(paletteSizeArgs[i]);
+            if (!App.checkIsPower(sizeInt, 2)) {
+                throw new IllegalArgumentException("Please enter power(s) of 2 as the endpoints of a range.");
+            }
+            paletteSizeArray[i] = sizeInt;
+        }
+        if (paletteSizeArray[0] > paletteSizeArray[1]) {
+            throw new IllegalArgumentException("Please enter a range where the first integer is less than or equal to the second.");
+        }
+
+        // every power of 2 palette size in the range
+        int smallestColors = paletteSizeArray[0];
+        int largestColors = paletteSizeArray[1];
+        int sizeCount = Integer.numberOfTrailingZeros(largestColors) - Integer.numberOfTrailingZeros(smallestColors) + 1;
+        parsed.paletteSizes = new int[sizeCount];
+        for (int i = 0; i < sizeCount; i++) {
+            parsed.paletteSizes[i] = smallestColors << i;
+        }
+        return parsed;
+    }
+
+    // method to parse one palette size, from 1 to 256
+    private static int parsePaletteSize(String size) {
+        int sizeInt;
+        try {
+            sizeInt = Integer.parseInt(size);
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Please enter an integer (int), list of integers (int,int) or range of integers (int-int) as the second argument.");
+        }
+        if (sizeInt < 1) {
+            throw new IllegalArgumentException("Please enter palette sizes of at least 1.");
+        }
+        if (sizeInt > 256) {
+            throw new IllegalArgumentException("Please enter palette sizes of at most 256, the most an 8 bit .bmp file holds.");
+        }
+        return sizeInt;
+    }
+
+    // method to parse a positive integer option
+    static int parsePositive(String value, String optionName) {
+        int parsedValue;
+        try {
+            parsedValue = Integer.parseInt(value);
+        } catch (Exception e) {
+            parsedValue = 0;
+        }
+        if (parsedValue < 1) {
+            throw new IllegalArgumentException("Please enter a positive integer for the " + optionName + " option.");
+        }
+        return parsedValue;
+    }
+
+    // method to copy every setting, so a variant can be made with the setters without changing these options
+    public QuantizationOptions copy() {
+        QuantizationOptions copy = new QuantizationOptions(1);
+        copy.paletteSizes = paletteSizes.clone();
+        copy.histogramBits = histogramBits;
+        copy.parallelism = parallelism;
+        copy.mapperStrategy = mapperStrategy;
+        copy.quantizer = quantizer;
+        copy.splitOrder = splitOrder;
+        copy.boxColor = boxColor;
+        copy.dither = dither;
+        copy.sampleMethod = sampleMethod;
+        copy.sampleBudget = sampleBudget;
+        copy.reportQuality = reportQuality;
+        copy.bmpFormat = bmpFormat;
+        copy.colorSpace = colorSpace;
+        copy.streaming = streaming;
+        return copy;
+    }
+
+    public int[] getPaletteSizes() {
+        return paletteSizes.clone();
+    }
+
+    public int getLargestPaletteSize() {
+        return paletteSizes[paletteSizes.length - 1];
+    }
+
+    public int getHistogramBits() {
+        return histogramBits;
+    }
+
+    public QuantizationOptions setHistogramBits(int histogramBits) {
+        if (histogramBits != 0 && histogramBits != 5 && histogramBits != 6 && histogramBits != 8) {
+            throw new IllegalArgumentException("histogram bits must be 0 (off), 5, 6 or 8 (exact)");
+        }
+        this.histogramBits = histogramBits;
+        return this;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public QuantizationOptions setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public String getMapperStrategy() {
+        return mapperStrategy;
+    }
+
+    public QuantizationOptions setMapperStrategy(String mapperStrategy) {
+        if (!mapperStrategy.equals("direct") && !Arrays.asList(PaletteMapper.STRATEGIES).contains(mapperStrategy)) {
+            throw new IllegalArgumentException("unknown palette mapper: " + mapperStrategy);
+        }
+        this.mapperStrategy = mapperStrategy;
+        return this;
+    }
+
+    public String getQuantizer() {
+        return quantizer;
+    }
+
+    public QuantizationOptions setQuantizer(String quantizer) {
+        if (!Arrays.asList(Quantizer.ENGINES).contains(quantizer)) {
+            throw new IllegalArgumentException("unknown quantizer: " + quantizer);
+        }
+        this.quantizer = quantizer;
+        return this;
+    }
+
+    public String getSplitOrder() {
+        return splitOrder;
+    }
+
+    public QuantizationOptions setSplitOrder(String splitOrder) {
+        if (!Arrays.asList(ColorReducer.SPLIT_ORDERS).contains(splitOrder)) {
+            throw new IllegalArgumentException("unknown split order: " + splitOrder);
+        }
+        this.splitOrder = splitOrder;
+        return this;
+    }
+
+    public String getBoxColor() {
+        return boxColor;
+    }
+
+    public QuantizationOptions setBoxColor(String boxColor) {
+        if (!Arrays.asList(ColorReducer.BOX_COLORS).contains(boxColor)) {
+            throw new IllegalArgumentException("unknown box color: " + boxColor);
+        }
+        this.boxColor = boxColor;
+        return this;
+    }
+
+    public String getDither() {
+        return dither;
+    }
+
+    public QuantizationOptions setDither(String dither) {
+        if (!Arrays.asList(ImageRemapper.DITHER_MODES).contains(dither)) {
+            throw new IllegalArgumentException("unknown dither mode: " + dither);
+        }
+        this.dither = dither;
+        return this;
+    }
+
+    public String getSampleMethod() {
+        return sampleMethod;
+    }
+
+    public QuantizationOptions setSampleMethod(String sampleMethod) {
+        if (sampleMethod != null && !Arrays.asList(PixelSampler.METHODS).contains(sampleMethod)) {
+            throw new IllegalArgumentException("unknown sampling method: " + sampleMethod);
+        }
+        this.sampleMethod = sampleMethod;
+        return this;
+    }
+
+    public int getSampleBudget() {
+        return sampleBudget;
+    }
+
+    public QuantizationOptions setSampleBudget(int sampleBudget) {
+        if (sampleBudget < 1) {
+            throw new IllegalArgumentException("sample budget must be at least 1");
+        }
+        this.sampleBudget = sampleBudget;
+        return this;
+    }
+
+    public boolean isReportQuality() {
+        return reportQuality;
+    }
+
+    public QuantizationOptions setReportQuality(boolean reportQuality) {
+        this.reportQuality = reportQuality;
+        return this;
+    }
+
+    public String getBmpFormat() {
+        return bmpFormat;
+    }
+
+    public QuantizationOptions setBmpFormat(String bmpFormat) {
+        if (!Arrays.asList(BMPWriter.FORMATS).contains(bmpFormat)) {
+            throw new IllegalArgumentException("unknown .bmp format: " + bmpFormat);
+        }
+        this.bmpFormat = bmpFormat;
+        return this;
+    }
+
+    public String getColorSpace() {
+        return colorSpace;
+    }
+
+    public QuantizationOptions setColorSpace(String colorSpace) {
+        if (!Arrays.asList(ColorSpace.SPACES).contains(colorSpace)) {
+            throw new IllegalArgumentException("unknown color space: " + colorSpace);
+        }
+        this.colorSpace = colorSpace;
+        return this;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    public QuantizationOptions setStreaming(boolean streaming) {
+        this.streaming = streaming;
+        return this;
+    }
+
+    // method to check that the settings work together (each setter only checks its own value)
+    // only median cut builds the box tree that histogram mode and the box mappers need, and the direct mapper needs the
+    // boxes of a median cut over every raw pixel, left as they are
+    public void validate() {
+        if (!quantizer.equals("mediancut")) {
+            if (histogramBits != 0) {
+                throw new IllegalArgumentException("--histogram only applies to the mediancut quantizer.");
+            }
+            if (mapperStrategy.startsWith("boxtree") || isDirectMapping()) {
+                throw new IllegalArgumentException("The " + mapperStrategy + " mapper needs the box tree of the mediancut quantizer.");
+            }
+            if (!splitOrder.equals("balanced")) {
+                throw new IllegalArgumentException("--split only applies to the mediancut quantizer.");
+            }
+            if (!boxColor.equals("midpoint")) {
+                throw new IllegalArgumentException("--box-color only applies to the mediancut quantizer.");
+            }
+        }
+        if (isDirectMapping()) {
+            if (histogramBits != 0) {
+                throw new IllegalArgumentException("The direct mapper needs median cut on raw pixels and cannot be combined with --histogram.");
+            }
+            if (!dither.equals("none")) {
+                throw new IllegalArgumentException("The direct mapper keeps the median cut boxes and cannot be combined with --dither.");
+            }
+            if (sampleMethod != null) {
+                throw new IllegalArgumentException("The direct mapper needs median cut on every pixel and cannot be combined with --sample.");
+            }
+        }
+        if (streaming) {
+            checkStreaming();
+        }
+    }
+
+    // method to check that the settings can run on an image streamed a chunk of rows at a time
+    // the palette must come from something of bounded size fed one chunk at a time (a reservoir sample, a color histogram
+    // or the octree), and nothing may need every pixel at once
+    public void checkStreaming() {
+        if (isDirectMapping()) {
+            throw new IllegalArgumentException("The direct mapper needs every pixel in memory and cannot be combined with --streaming.");
+        }
+        if (sampleMethod != null && !sampleMethod.equals("reservoir")) {
+            throw new IllegalArgumentException("Please enter --sample=reservoir with --streaming; the other sampling methods need every pixel in memory.");
+        }
+        if (sampleMethod == null && quantizer.equals("mediancut") && histogramBits == 0) {
+            throw new IllegalArgumentException("Please enter --histogram=exact|6|5 or --sample=reservoir with --streaming, so median cut runs on a bounded set of colors.");
+        }
+        if (sampleMethod == null && !quantizer.equals("mediancut") && !quantizer.equals("octree")) {
+            throw new IllegalArgumentException("Please enter --sample=reservoir with --streaming and the " + quantizer + " quantizer.");
+        }
+        if (reportQuality) {
+            throw new IllegalArgumentException("--quality needs every pixel in memory and cannot be combined with --streaming.");
+        }
+        if (bmpFormat.equals("rle")) {
+            throw new IllegalArgumentException("--bmp=rle keeps the compressed image in memory until the file is closed and cannot be combined with --streaming.");
+        }
+    }
+
+    // whether pixels keep the box median cut put them in instead of being mapped (see ColorReducer.getPixelBoxes)
+    public boolean isDirectMapping() {
+        return mapperStrategy.equals("direct");
+    }
+
+    // method to describe every setting that decides the palettes (but not their sizes), for the keys of PaletteCache
+    // the thread count is left out, since every engine finds the same palettes on any number of threads
+    public String describePalette() {
+        StringBuilder description = new StringBuilder(quantizer);
+        if (quantizer.equals("mediancut")) {
+            description.append(",split=").append(splitOrder).append(",box-color=").append(boxColor).append(",histogram=").append(histogramBits);
+        }
+        if (!colorSpace.equals("rgb")) {
+            description.append(",color-space=").append(colorSpace);
+        }
+        if (sampleMethod != null) {
+            description.append(",sample=").append(sampleMethod).append(':').append(sampleBudget).append(':').append(PixelSampler.DEFAULT_SEED);
+        }
+        return description.toString();
+    }
+}
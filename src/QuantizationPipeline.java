@@ -0,0 +1,514 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationPipeline class
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+// class object: quantizes images held in memory with one set of options, with no files involved
+// finds the palette of every size (from the palette cache when it has them), then maps every pixel to each palette a
+// block of rows at a time and hands the indices to a sink per palette size; without sinks the indices are kept in the
+// result, which can also encode them as .bmp bytes
+// thread-safe: one pipeline can serve concurrent requests; each calling thread gets its own QuantizationWorkspace, so a
+// thread's later images reuse its buffers; the options must not be changed while the pipeline is in use
+// the pixel arrays given are never modified
+// quantizeStreaming reads a .raw file twice a chunk of rows at a time instead of taking a pixel array: the first pass
+// builds the palettes from a source of bounded size, the second maps each chunk and hands it to the sinks, so memory use
+// depends on the options and the width of a chunk but not on the size of the image
+public class QuantizationPipeline {
+
+    // pixels read per chunk when streaming
+    private static final int STREAMING_CHUNK_PIXELS = 1 << 20;
+
+    private final QuantizationOptions options;
+    private final PaletteCache paletteCache; // null for none
+    private final ColorSpace colorSpace; // null for RGB, which needs no conversion
+
+    // the workspace of each calling thread
+    private final ThreadLocal<QuantizationWorkspace> workspaces = ThreadLocal.withInitial(QuantizationWorkspace::new);
+
+    // constructor
+    public QuantizationPipeline(QuantizationOptions options) {
+        this(options, null);
+    }
+
+    // constructor with a palette cache shared by every request (null for none)
+    // the options are checked with QuantizationOptions.validate, since setters check each setting on its own
+    public QuantizationPipeline(QuantizationOptions options, PaletteCache paletteCache) {
+        options.validate();
+        if (paletteCache != null && (options.getMapperStrategy().startsWith("boxtree") || options.isDirectMapping())) {
+            throw new IllegalArgumentException("the " + options.getMapperStrategy() + " mapper needs the box tree of a fresh median cut and cannot use a palette cache");
+        }
+        this.options = options;
+        this.paletteCache = paletteCache;
+        this.colorSpace = ColorSpace.forName(options.getColorSpace());
+    }
+
+    // method to quantize one image with the given options, keeping the indices in the result
+    public static QuantizationResult quantize(int[] pixels, int width, int height, QuantizationOptions options) throws InterruptedException {
+        return new QuantizationPipeline(options).quantize(pixels, width, height);
+    }
+
+    // method to quantize row-major pixels packed as 0xRRGGBB, keeping the indices in the result
+    public QuantizationResult quantize(int[] pixels, int width, int height) throws InterruptedException {
+        try {
+            return quantize(pixels, width, height, null, new QuantizationMetrics());
+        } catch (IOException e) {
+            // only the sinks do I/O, and the in-memory ones never fail
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // method to quantize the remaining pixels of a buffer (its position is not moved)
+    public QuantizationResult quantize(IntBuffer pixels, int width, int height) throws InterruptedException {
+        int[] array;
+        if (pixels.hasArray() && pixels.arrayOffset() == 0 && pixels.position() == 0 && pixels.remaining() == pixels.array().length) {
+            array = pixels.array();
+        } else {
+            array = new int[pixels.remaining()];
+            pixels.duplicate().get(array);
+        }
+        return quantize(array, width, height);
+    }
+
+    // method to quantize pixels given as 3 bytes each (R, G, B), the layout of a .raw file
+    public QuantizationResult quantizeRGB(byte[] rgb, int width, int height) throws InterruptedException {
+        if (rgb.length != 3L * width * height) {
+            throw new IllegalArgumentException("the byte array does not hold 3 * width * height bytes");
+        }
+        int[] pixels = new int[rgb.length / 3];
+        for (int p = 0, b = 0; p < pixels.length; p++, b += 3) {
+            pixels[p] = ((rgb[b] & 0xFF) << 16) | ((rgb[b + 1] & 0xFF) << 8) | (rgb[b + 2] & 0xFF);
+        }
+        return quantize(pixels, width, height);
+    }
+
+    // method to quantize an image into sinks opened by the factory (null to keep the indices in the result), adding the
+    // stage timings and counters to metrics
+    public QuantizationResult quantize(int[] pixels, int width, int height, QuantizationSink.Factory sinks, QuantizationMetrics metrics)
+            throws IOException, InterruptedException {
+        return quantize(pixels, width, height, sinks, metrics, workspaces.get());
+    }
+
+    // method to quantize an image using the scratch buffers of the given workspace, which only this thread may be using
+    public QuantizationResult quantize(int[] pixels, int width, int height, QuantizationSink.Factory sinks, QuantizationMetrics metrics,
+            QuantizationWorkspace workspace) throws IOException, InterruptedException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be positive");
+        }
+        if (pixels.length != (long) width * height) {
+            throw new IllegalArgumentException("the pixel array does not hold width * height pixels");
+        }
+        int histogramBits = options.getHistogramBits();
+        boolean directMapping = options.isDirectMapping();
+        int[] paletteSizes = options.getPaletteSizes();
+        int sizeCount = paletteSizes.length;
+        int largestColors = options.getLargestPaletteSize();
+        int i;
+
+        long stageStart = System.nanoTime();
+        metrics.add(QuantizationMetrics.IMAGES, 1);
+        metrics.add(QuantizationMetrics.PIXELS, pixels.length);
+
+        // the pixels in the color space the palettes are found and the pixels mapped in (the given array for RGB)
+        int[] workingPixels = pixels;
+        if (colorSpace != null) {
+            workingPixels = workspace.convertedPixels(pixels.length);
+            colorSpace.fromRGB(pixels, 0, workingPixels, 0, pixels.length);
+            stageStart = metrics.addTimeSince(QuantizationMetrics.CONVERT, stageStart);
+        }
+
+        // the pixels the palette is built from: all of them, or a sample of a fixed size
+        int[] palettePixels = workingPixels;
+        if (options.getSampleMethod() != null) {
+            palettePixels = PixelSampler.sample(options.getSampleMethod(), workingPixels, width, height, options.getSampleBudget(),
+                    PixelSampler.DEFAULT_SEED);
+            stageStart = metrics.addTimeSince(QuantizationMetrics.SAMPLE, stageStart);
+        }
+
+        // finds the palette of every size, unless the cache has all of them
+        String engine = options.getQuantizer();
+        String paletteSettings = options.describePalette();
+        long contentHash = paletteCache == null ? 0 : PaletteCache.contentHash(pixels, width, height);
+        SplitTree[] splitTrees = new SplitTree[sizeCount];
+        ColorReducer colorPaletteFinder = null;
+        int histogramBins = -1;
+        long startTime = System.nanoTime();
+        RGB[][] palettes = paletteCache == null ? null : paletteCache.getPalettes(contentHash, paletteSettings, paletteSizes);
+        boolean cacheHit = palettes != null;
+        if (paletteCache != null) {
+            metrics.add(cacheHit ? QuantizationMetrics.PALETTE_CACHE_HITS : QuantizationMetrics.PALETTE_CACHE_MISSES, sizeCount);
+        }
+        stageStart = metrics.addTimeSince(QuantizationMetrics.PALETTE, stageStart);
+        if (cacheHit) {
+            // nothing left to find: straight to palette mapping
+        } else if (engine.equals("mediancut")) {
+            // copy of the pixels for the median cut algorithm, which reorders its array in place
+            // in histogram mode the histogram is built instead
+            // for direct mapping, the original index of each container entry is tracked alongside it
+            int[] container = null;
+            int containerLength = palettePixels.length;
+            int[] containerPositions = null;
+            ColorHistogram histogram = null;
+            if (histogramBits == 0) {
+                container = palettePixels == workingPixels ? workspace.copyToContainer(workingPixels, containerLength) : palettePixels;
+                if (directMapping) {
+                    containerPositions = workspace.positions(containerLength);
+                }
+            } else {
+                histogram = ColorHistogram.of(palettePixels, histogramBits);
+                histogramBins = histogram.getDistinctColors();
+                metrics.add(QuantizationMetrics.DISTINCT_COLORS, histogramBins);
+            }
+            stageStart = metrics.addTimeSince(QuantizationMetrics.HISTOGRAM, stageStart);
+
+            // the median cutter for the largest palette size
+            if (histogram == null) {
+                colorPaletteFinder = workspace.reducer(container, containerLength, largestColors);
+                if (containerPositions != null) {
+                    colorPaletteFinder.setPixelPositions(containerPositions);
+                }
+            } else {
+                colorPaletteFinder = workspace.reducer(histogram, largestColors);
+            }
+            startTime = System.nanoTime();
+            palettes = cutMedian(colorPaletteFinder, splitTrees);
+            stageStart = metrics.addTimeSince(QuantizationMetrics.SPLIT, stageStart);
+            metrics.add(QuantizationMetrics.BOX_SPLITS, colorPaletteFinder.getSplitCount());
+        } else {
+            startTime = System.nanoTime();
+            palettes = Quantizer.create(engine, options.getParallelism()).findPalettes(palettePixels, paletteSizes);
+            stageStart = metrics.addTimeSince(QuantizationMetrics.SPLIT, stageStart);
+        }
+        long paletteNanos = System.nanoTime() - startTime;
+        if (paletteCache != null && !cacheHit) {
+            paletteCache.putPalettes(contentHash, paletteSettings, paletteSizes, palettes);
+        }
+        RGB[][] rgbPalettes = toRGB(palettes);
+        metrics.addTimeSince(QuantizationMetrics.PALETTE, stageStart);
+
+        // the following assigns each pixel to a color from each palette and hands the indices to the sinks
+        byte[][] indices = null;
+        if (sinks == null) {
+            byte[][] kept = new byte[sizeCount][];
+            indices = kept;
+            int[] next = {0};
+            sinks = (numColors, palette, sinkWidth, sinkHeight) -> new ArraySink(kept[next[0]++] = new byte[pixels.length], sinkWidth);
+        }
+
+        // with more than one thread, each block of rows is split between the threads of one pool
+        int rowsPerBlock = rowsPerBlock(width, height, options.getParallelism());
+        startTime = System.nanoTime();
+        try (Outputs outputs = new Outputs(sinks, palettes, rgbPalettes, splitTrees, width, height, rowsPerBlock, workspace, metrics)) {
+            stageStart = System.nanoTime();
+            if (directMapping) {
+                // median cut already recorded the box of every pixel
+                byte[] pixelBoxes = workspace.indices(pixels.length);
+                for (i = 0; i < sizeCount; i++) {
+                    byte[] boxes = colorPaletteFinder.getPixelBoxes(paletteSizes[i], pixelBoxes);
+                    stageStart = metrics.addTimeSince(QuantizationMetrics.MAP, stageStart);
+                    outputs.sinks[i].writeRows(0, height, boxes, 0);
+                    stageStart = metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+                }
+            } else {
+                // a single pass over the pixels: each block of rows is mapped to every palette while it is still in cache
+                // and handed to the sinks straight away, so no full array of palette indices is kept
+                for (int h = 0; h < height; h += rowsPerBlock) {
+                    outputs.mapRows(workingPixels, h * width, h, Math.min(rowsPerBlock, height - h));
+                }
+                outputs.finish();
+            }
+            stageStart = System.nanoTime();
+        }
+        metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+        long outputNanos = System.nanoTime() - startTime;
+
+        return new QuantizationResult(width, height, paletteSizes, rgbPalettes, indices, palettePixels == workingPixels ? -1 : palettePixels.length,
+                histogramBins, cacheHit, paletteNanos, outputNanos);
+    }
+
+    // method to quantize a .raw file without holding the whole image, into sinks opened by the factory (see
+    // QuantizationOptions.checkStreaming for the options this allows)
+    public QuantizationResult quantizeStreaming(RawImageReader reader, QuantizationSink.Factory sinks, QuantizationMetrics metrics)
+            throws IOException, InterruptedException {
+        return quantizeStreaming(reader, sinks, metrics, workspaces.get());
+    }
+
+    // method to quantize a .raw file in two passes over it using the scratch buffers of the given workspace
+    // first pass: every chunk of rows goes into a reservoir sample, a color histogram or the octree, whichever the options
+    // build the palettes from; second pass: every chunk is mapped a block of rows at a time and handed to the sinks
+    // dithering carries its error from one chunk to the next, so the output is the same as quantizing the image in memory
+    // with the same options
+    public QuantizationResult quantizeStreaming(RawImageReader reader, QuantizationSink.Factory sinks, QuantizationMetrics metrics,
+            QuantizationWorkspace workspace) throws IOException, InterruptedException {
+        if (sinks == null) {
+            throw new IllegalArgumentException("streaming needs sinks, since the indices of the whole image are not kept");
+        }
+        if (paletteCache != null) {
+            throw new IllegalArgumentException("palettes are cached by the hash of every pixel, so a streamed image cannot use the palette cache");
+        }
+        options.checkStreaming();
+        int width = reader.getWidth();
+        int height = reader.getHeight();
+        int[] paletteSizes = options.getPaletteSizes();
+        int largestColors = options.getLargestPaletteSize();
+        String engine = options.getQuantizer();
+        int rowsPerChunk = rowsPerChunk(width, height);
+
+        long stageStart = System.nanoTime();
+        metrics.add(QuantizationMetrics.IMAGES, 1);
+        metrics.add(QuantizationMetrics.PIXELS, (long) width * height);
+
+        // first pass: the source the palettes are built from, fed a chunk at a time
+        PixelSampler.Reservoir reservoir = null;
+        ColorHistogram histogram = null;
+        OctreeQuantizer octree = null;
+        int sourceStage;
+        if (options.getSampleMethod() != null) {
+            reservoir = new PixelSampler.Reservoir(options.getSampleBudget(), PixelSampler.DEFAULT_SEED);
+            sourceStage = QuantizationMetrics.SAMPLE;
+        } else if (engine.equals("mediancut")) {
+            histogram = new ColorHistogram(options.getHistogramBits());
+            sourceStage = QuantizationMetrics.HISTOGRAM;
+        } else {
+            octree = new OctreeQuantizer();
+            octree.reset();
+            sourceStage = QuantizationMetrics.SPLIT;
+        }
+        PixelSampler.Reservoir sampleSource = reservoir;
+        ColorHistogram histogramSource = histogram;
+        OctreeQuantizer octreeSource = octree;
+        long[] handlerNanos = {0}; // time of the chunk handlers spent on anything but reading
+        long[] sourceNanos = {0}; // the part of it spent on the palette source
+        long startTime = System.nanoTime();
+        reader.streamRows(rowsPerChunk, (firstRow, rowCount, chunk) -> {
+            handlerNanos[0] += convert(chunk, rowCount * width, metrics);
+            long chunkStart = System.nanoTime();
+            if (sampleSource != null) {
+                sampleSource.add(chunk, 0, rowCount * width);
+            } else if (histogramSource != null) {
+                histogramSource.add(chunk, 0, rowCount * width);
+            } else {
+                octreeSource.add(chunk, 0, rowCount * width);
+            }
+            sourceNanos[0] += System.nanoTime() - chunkStart;
+        });
+        metrics.addTime(sourceStage, sourceNanos[0]);
+        metrics.addTime(QuantizationMetrics.READ, System.nanoTime() - stageStart - handlerNanos[0] - sourceNanos[0]);
+        stageStart = System.nanoTime();
+
+        // the palette of every size
+        SplitTree[] splitTrees = new SplitTree[paletteSizes.length];
+        int[] sample = null;
+        int histogramBins = -1;
+        RGB[][] palettes;
+        if (reservoir != null) {
+            sample = reservoir.getSample();
+            if (engine.equals("mediancut") && options.getHistogramBits() != 0) {
+                histogram = ColorHistogram.of(sample, options.getHistogramBits());
+                stageStart = metrics.addTimeSince(QuantizationMetrics.HISTOGRAM, stageStart);
+            }
+        }
+        if (histogram != null) {
+            histogramBins = histogram.getDistinctColors();
+            metrics.add(QuantizationMetrics.DISTINCT_COLORS, histogramBins);
+        }
+        if (engine.equals("mediancut")) {
+            // the sample is a fresh array, so median cut can reorder it in place
+            ColorReducer colorPaletteFinder = histogram != null ? workspace.reducer(histogram, largestColors)
+                    : workspace.reducer(sample, sample.length, largestColors);
+            palettes = cutMedian(colorPaletteFinder, splitTrees);
+            metrics.add(QuantizationMetrics.BOX_SPLITS, colorPaletteFinder.getSplitCount());
+        } else if (octree != null) {
+            palettes = octree.reducePalettes(paletteSizes);
+        } else {
+            palettes = Quantizer.create(engine, options.getParallelism()).findPalettes(sample, paletteSizes);
+        }
+        stageStart = metrics.addTimeSince(QuantizationMetrics.SPLIT, stageStart);
+        RGB[][] rgbPalettes = toRGB(palettes);
+        long paletteNanos = stageStart - startTime;
+
+        // second pass: each chunk is mapped and written a block of rows at a time
+        int rowsPerBlock = rowsPerBlock(width, rowsPerChunk, options.getParallelism());
+        startTime = System.nanoTime();
+        handlerNanos[0] = 0;
+        try (Outputs outputs = new Outputs(sinks, palettes, rgbPalettes, splitTrees, width, height, rowsPerBlock, workspace, metrics)) {
+            stageStart = System.nanoTime();
+            reader.streamRows(rowsPerChunk, (firstRow, rowCount, chunk) -> {
+                long chunkStart = System.nanoTime();
+                convert(chunk, rowCount * width, metrics);
+                for (int r = 0; r < rowCount; r += rowsPerBlock) {
+                    try {
+                        outputs.mapRows(chunk, r * width, firstRow + r, Math.min(rowsPerBlock, rowCount - r));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("interrupted while mapping rows");
+                    }
+                }
+                handlerNanos[0] += System.nanoTime() - chunkStart;
+            });
+            metrics.addTime(QuantizationMetrics.READ, System.nanoTime() - stageStart - handlerNanos[0]);
+            outputs.finish();
+            stageStart = System.nanoTime();
+        }
+        metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+        long outputNanos = System.nanoTime() - startTime;
+
+        return new QuantizationResult(width, height, paletteSizes, rgbPalettes, null, sample == null ? -1 : sample.length, histogramBins,
+                false, paletteNanos, outputNanos);
+    }
+
+    // method to convert a chunk of pixels into the color space in place, adding the time to metrics; returns the time
+    private long convert(int[] pixels, int length, QuantizationMetrics metrics) {
+        if (colorSpace == null) {
+            return 0;
+        }
+        long start = System.nanoTime();
+        colorSpace.fromRGB(pixels, 0, pixels, 0, length);
+        long nanos = System.nanoTime() - start;
+        metrics.addTime(QuantizationMetrics.CONVERT, nanos);
+        return nanos;
+    }
+
+    // method to convert palettes found in the color space back to RGB (the same palettes for RGB)
+    private RGB[][] toRGB(RGB[][] palettes) {
+        if (colorSpace == null) {
+            return palettes;
+        }
+        RGB[][] rgbPalettes = new RGB[palettes.length][];
+        for (int i = 0; i < palettes.length; i++) {
+            rgbPalettes[i] = colorSpace.toRGB(palettes[i]);
+        }
+        return rgbPalettes;
+    }
+
+    // method to run median cut with the options and read off the palette and box tree of every size
+    // the box tree of a 2^k color cut is the top of the 2^(k+1) color tree, so the whole range is cut only once
+    private RGB[][] cutMedian(ColorReducer colorPaletteFinder, SplitTree[] splitTrees) {
+        colorPaletteFinder.setParallelism(options.getParallelism());
+        colorPaletteFinder.setSplitOrder(options.getSplitOrder());
+        colorPaletteFinder.setBoxColor(options.getBoxColor());
+        colorPaletteFinder.medianCut();
+
+        // the color table of every size comes from the levels of the box tree
+        int[] paletteSizes = options.getPaletteSizes();
+        RGB[][] palettes = new RGB[paletteSizes.length][];
+        for (int i = 0; i < paletteSizes.length; i++) {
+            palettes[i] = colorPaletteFinder.getColorPalette(paletteSizes[i]);
+            splitTrees[i] = colorPaletteFinder.getSplitTree(paletteSizes[i]);
+        }
+        return palettes;
+    }
+
+    // method to get the rows read per chunk when streaming: about 1M pixels (4 MB of pixels and 3 MB of the file), however
+    // large the image, and at least one row
+    public static int rowsPerChunk(int width, int height) {
+        return Math.max(1, Math.min(height, STREAMING_CHUNK_PIXELS / width));
+    }
+
+    // method to get the rows mapped per block: about 64K pixels per thread, so a block stays in cache
+    public static int rowsPerBlock(int width, int height, int threads) {
+        return Math.max(1, Math.min(height, threads * ((1 << 16) / width)));
+    }
+
+    // class object: the open sink and palette mapper of every palette size of one image
+    // blocks of rows are mapped to every palette while they are still in cache and handed to the sinks in order
+    private class Outputs implements Closeable {
+        private final QuantizationSink[] sinks;
+        private final ImageRemapper[] remappers; // null for direct mapping, which writes the sinks itself
+        private final ExecutorService remapPool; // the workspace's pool, null on one thread
+        private final byte[] blockIndices;
+        private final int width;
+        private final int mapStage;
+        private final QuantizationMetrics metrics;
+
+        // constructor: opens a sink per palette size with the RGB palette and builds its mapper on the palette in the
+        // color space the pixels are mapped in (closing what was opened if one fails)
+        Outputs(QuantizationSink.Factory factory, RGB[][] palettes, RGB[][] rgbPalettes, SplitTree[] splitTrees, int width, int height, int rowsPerBlock,
+                QuantizationWorkspace workspace, QuantizationMetrics metrics) throws IOException {
+            int[] paletteSizes = options.getPaletteSizes();
+            int threads = options.getParallelism();
+            this.width = width;
+            this.metrics = metrics;
+            this.mapStage = options.getDither().equals("none") ? QuantizationMetrics.MAP : QuantizationMetrics.DITHER;
+            this.sinks = new QuantizationSink[paletteSizes.length];
+            boolean directMapping = options.isDirectMapping();
+            this.remapPool = threads > 1 && !directMapping ? workspace.remapPool(threads) : null;
+            this.remappers = directMapping ? null : new ImageRemapper[paletteSizes.length];
+            this.blockIndices = directMapping ? null : workspace.indices(rowsPerBlock * width);
+            long stageStart = System.nanoTime();
+            try {
+                for (int i = 0; i < paletteSizes.length; i++) {
+                    sinks[i] = factory.open(paletteSizes[i], rgbPalettes[i], width, height);
+                }
+                stageStart = metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+                for (int i = 0; remappers != null && i < paletteSizes.length; i++) {
+                    remappers[i] = new ImageRemapper(options.getMapperStrategy(), PaletteMapper.packPalette(palettes[i]), splitTrees[i],
+                            width, options.getDither(), remapPool, threads);
+                }
+                metrics.addTimeSince(mapStage, stageStart);
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        // method to map rowCount rows of pixels, starting at offset, to every palette and write them as rows from firstRow on
+        // blocks must come in order from the top row, since dithering carries its error down to the next row
+        // a block is also where a cancelled request stops: an interrupted thread gives up before mapping the next one
+        void mapRows(int[] pixels, int offset, int firstRow, int rowCount) throws IOException, InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("quantization was cancelled");
+            }
+            long stageStart = System.nanoTime();
+            for (int i = 0; i < sinks.length; i++) {
+                remappers[i].remapRows(pixels, offset, blockIndices, 0, rowCount);
+                stageStart = metrics.addTimeSince(mapStage, stageStart);
+                sinks[i].writeRows(firstRow, rowCount, blockIndices, 0);
+                stageStart = metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+            }
+            metrics.add(QuantizationMetrics.MAPPING_LOOKUPS, (long) rowCount * width * sinks.length);
+        }
+
+        // method to add the mapper counters to the metrics once every row is mapped
+        void finish() {
+            for (ImageRemapper remapper : remappers) {
+                metrics.add(QuantizationMetrics.MAPPER_CACHE_HITS, remapper.getMapperCacheHits());
+            }
+        }
+
+        // method to close every sink, which finishes its file (the mapping threads stay with the workspace)
+        @Override
+        public void close() throws IOException {
+            for (QuantizationSink sink : sinks) {
+                if (sink != null) {
+                    sink.close();
+                }
+            }
+        }
+    }
+
+    // class object: a sink that keeps every row in one row-major array
+    private static class ArraySink implements QuantizationSink {
+        private byte[] target;
+        private int width;
+
+        ArraySink(byte[] target, int width) {
+            this.target = target;
+            this.width = width;
+        }
+
+        @Override
+        public void writeRows(int firstRow, int rowCount, byte[] indices, int offset) {
+            System.arraycopy(indices, offset, target, firstRow * width, rowCount * width);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
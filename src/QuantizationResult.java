@@ -0,0 +1,107 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationResult class
+ */
+
+// class object: what QuantizationPipeline.quantize found for one image: the palette of every size and, unless the
+// indices went to caller's sinks, the palette index of every pixel for each size
+// also keeps what the CLI prints about the run: the sample and histogram sizes, whether the palette cache had the
+// palettes and how long finding the palettes and mapping the pixels took
+public class QuantizationResult {
+
+    private int width;
+    private int height;
+    private int[] paletteSizes;
+    private RGB[][] palettes;
+    private byte[][] indices; // null when the indices went to sinks
+
+    private int sampledPixels; // -1 when every pixel was used
+    private int histogramBins; // -1 when no histogram was built
+    private boolean cacheHit;
+    private long paletteNanos;
+    private long outputNanos;
+
+    // constructor
+    public QuantizationResult(int width, int height, int[] paletteSizes, RGB[][] palettes, byte[][] indices, int sampledPixels,
+            int histogramBins, boolean cacheHit, long paletteNanos, long outputNanos) {
+        this.width = width;
+        this.height = height;
+        this.paletteSizes = paletteSizes;
+        this.palettes = palettes;
+        this.indices = indices;
+        this.sampledPixels = sampledPixels;
+        this.histogramBins = histogramBins;
+        this.cacheHit = cacheHit;
+        this.paletteNanos = paletteNanos;
+        this.outputNanos = outputNanos;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPaletteSizes() {
+        return paletteSizes.clone();
+    }
+
+    // method to get the palette of the i-th palette size
+    public RGB[] getPalette(int i) {
+        return palettes[i].clone();
+    }
+
+    // method to get the palette of the i-th palette size packed as 0xRRGGBB
+    public int[] getPackedPalette(int i) {
+        return PaletteMapper.packPalette(palettes[i]);
+    }
+
+    // method to check whether the palette indices were kept (they are not when the caller gave sinks)
+    public boolean hasIndices() {
+        return indices != null;
+    }
+
+    // method to get the row-major palette index of every pixel for the i-th palette size
+    public byte[] getIndices(int i) {
+        if (indices == null) {
+            throw new IllegalStateException("the palette indices were written to sinks and not kept");
+        }
+        return indices[i];
+    }
+
+    // method to encode the i-th palette size as the bytes of a packed .bmp file (the fewest bits per pixel)
+    public byte[] toBMP(int i) {
+        return toBMP(i, "packed");
+    }
+
+    // method to encode the i-th palette size as the bytes of a .bmp file in one of BMPWriter.FORMATS
+    public byte[] toBMP(int i, String format) {
+        return BMPWriter.encode(width, height, palettes[i], getIndices(i), format);
+    }
+
+    public int getSampledPixels() {
+        return sampledPixels;
+    }
+
+    public int getHistogramBins() {
+        return histogramBins;
+    }
+
+    public boolean isCacheHit() {
+        return cacheHit;
+    }
+
+    // method to get the time spent finding the palettes (or looking them up in the cache)
+    public long getPaletteNanos() {
+        return paletteNanos;
+    }
+
+    // method to get the time spent mapping the pixels and writing the sinks
+    public long getOutputNanos() {
+        return outputNanos;
+    }
+}
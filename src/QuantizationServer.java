@@ -0,0 +1,370 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationServer class
+ */
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// class object: a long-running HTTP endpoint on the loopback interface that quantizes raw pixels sent to it, so clients
+// get code the JIT has already compiled instead of starting a new JVM per image
+// POST /quantize?width=W&height=H&colors=N[&name=value...] with the pixels as the body (3 bytes each, R, G, B, row by
+//   row: the layout of a .raw file) answers with the .bmp file; the other parameters are the command line options
+//   without their dashes (histogram=6, mapper=kdtree, dither=ordered, bmp=rle, ...) and deadline=MS shortens the deadline;
+//   options that only make sense for a whole run (streaming, quality, cache, ...) are answered with 400
+// GET /metrics answers with the stage timings and counters of every request so far as JSON; GET /health answers ok
+// requests run on a fixed pool of workers behind a bounded queue: a request that finds the queue full is turned away
+// with 503, and one that is not finished by its deadline is cancelled and answered with 504
+// each distinct set of options keeps one QuantizationPipeline, and each worker keeps one QuantizationWorkspace, so a
+// request reuses the engines and the image-sized buffers of the requests before it
+// Options:
+// --serve[=PORT]     port to listen on (default 8080)
+// --workers=N        requests quantized at once (default: number of processors)
+// --queue=N          requests waiting for a worker before more are turned away (default 4 per worker)
+// --deadline=MS      longest a request may take, waiting included (default 30000)
+// --max-pixels=N     largest image accepted (default 2^26)
+public class QuantizationServer {
+
+    public static final int DEFAULT_PORT = 8080;
+    public static final long DEFAULT_DEADLINE_MILLIS = 30000;
+    public static final int DEFAULT_MAX_PIXELS = 1 << 26;
+
+    // most option sets that keep a pipeline; requests with further option sets get a pipeline of their own
+    private static final int MAX_PIPELINES = 64;
+
+    // most request records a metrics report keeps; older requests only count in its total
+    private static final int REPORT_RECORDS = 1000;
+
+    // request parameters that are not quantization options
+    private static final Set<String> REQUEST_PARAMETERS = new HashSet<>(Arrays.asList("width", "height", "colors", "deadline"));
+
+    // quantization options a request may set; the others (streaming, quality, cache, metrics, ...) belong to a whole run
+    private static final String[] OPTION_PARAMETERS = {"histogram", "parallelism", "quantizer", "split", "box-color", "mapper", "dither",
+            "color-space", "sample", "sample-budget", "bmp"};
+
+    private final int port;
+    private final int workers;
+    private final long deadlineMillis;
+    private final int maxPixels;
+    private final PaletteCache paletteCache; // shared by every request, null for none
+    private final MetricsReport metricsReport; // null for none
+    private final QuantizationMetrics total; // of every request; the report's total when there is a report
+    private final AtomicLong requestCount = new AtomicLong(); // numbers the requests in the report's records
+    private final ConcurrentHashMap<String, QuantizationPipeline> pipelines = new ConcurrentHashMap<>();
+    private final ThreadLocal<QuantizationWorkspace> workspaces = ThreadLocal.withInitial(QuantizationWorkspace::new);
+    private final ThreadPoolExecutor workerPool;
+    private final ExecutorService connectionPool;
+    private HttpServer server;
+
+    // constructor
+    public QuantizationServer(int port, int workers, int queueLimit, long deadlineMillis, int maxPixels, PaletteCache paletteCache,
+            MetricsReport metricsReport) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("port must be between 0 and 65535");
+        }
+        if (workers < 1 || queueLimit < 1 || deadlineMillis < 1 || maxPixels < 1) {
+            throw new IllegalArgumentException("workers, queue limit, deadline and maximum pixels must be positive");
+        }
+        if (maxPixels > (Integer.MAX_VALUE - 1) / 3) {
+            throw new IllegalArgumentException("the pixels of the largest image must fit in one byte array");
+        }
+        this.port = port;
+        this.workers = workers;
+        this.deadlineMillis = deadlineMillis;
+        this.maxPixels = maxPixels;
+        this.paletteCache = paletteCache;
+        this.metricsReport = metricsReport;
+        if (metricsReport != null) {
+            metricsReport.setRecordLimit(REPORT_RECORDS);
+        }
+        this.total = metricsReport != null ? metricsReport.getTotal() : new QuantizationMetrics();
+        this.workerPool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueLimit));
+        // connections only read, wait and write; twice what the workers and the queue hold, so a burst past that gets a
+        // quick 503 rather than waiting unseen in the accept backlog
+        this.connectionPool = Executors.newFixedThreadPool(2 * (workers + queueLimit));
+    }
+
+    // method to build a server from the --serve, --workers, --queue, --deadline and --max-pixels options
+    public static QuantizationServer fromOptions(Map<String, String> options, PaletteCache paletteCache, MetricsReport metricsReport) {
+        int port = DEFAULT_PORT;
+        String serveOption = options.get("serve");
+        if (!serveOption.equals("true")) {
+            try {
+                port = Integer.parseInt(serveOption);
+            } catch (NumberFormatException e) {
+                port = -1;
+            }
+            if (port < 0 || port > 65535) {
+                throw new IllegalArgumentException("Please enter a port from 0 to 65535 for the --serve option.");
+            }
+        }
+        int workers = Runtime.getRuntime().availableProcessors();
+        if (options.containsKey("workers")) {
+            workers = QuantizationOptions.parsePositive(options.get("workers"), "--workers");
+        }
+        int queueLimit = 4 * workers;
+        if (options.containsKey("queue")) {
+            queueLimit = QuantizationOptions.parsePositive(options.get("queue"), "--queue");
+        }
+        long deadlineMillis = DEFAULT_DEADLINE_MILLIS;
+        if (options.containsKey("deadline")) {
+            deadlineMillis = QuantizationOptions.parsePositive(options.get("deadline"), "--deadline");
+        }
+        int maxPixels = DEFAULT_MAX_PIXELS;
+        if (options.containsKey("max-pixels")) {
+            maxPixels = QuantizationOptions.parsePositive(options.get("max-pixels"), "--max-pixels");
+        }
+        return new QuantizationServer(port, workers, queueLimit, deadlineMillis, maxPixels, paletteCache, metricsReport);
+    }
+
+    // method to warm up the JIT on a synthetic image and start listening; returns the port (useful when 0 picked one)
+    public int start() throws IOException {
+        warmUp();
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.setExecutor(connectionPool);
+        server.createContext("/quantize", this::handleQuantize);
+        server.createContext("/metrics", exchange -> handleText(exchange, "application/json", total.toJson()));
+        server.createContext("/health", exchange -> handleText(exchange, "text/plain", "ok"));
+        server.start();
+        return server.getAddress().getPort();
+    }
+
+    // method to stop accepting requests, let the running ones finish for up to a second and stop the workers
+    public void stop() throws IOException {
+        if (server != null) {
+            server.stop(1);
+        }
+        workerPool.shutdownNow();
+        connectionPool.shutdownNow();
+        if (metricsReport != null) {
+            metricsReport.write();
+        }
+    }
+
+    public QuantizationMetrics getTotal() {
+        return total;
+    }
+
+    // method to run the default options over a synthetic gradient on every worker, so the first requests do not pay for
+    // interpreted code
+    private void warmUp() {
+        int width = 256;
+        int height = 256;
+        int[] gradient = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                gradient[y * width + x] = RGB.pack(x, y, (x * y) >> 8);
+            }
+        }
+        QuantizationPipeline pipeline = new QuantizationPipeline(new QuantizationOptions(16));
+        List<Future<?>> rounds = new ArrayList<>();
+        for (int round = 0; round < workers; round++) {
+            rounds.add(workerPool.submit(() -> {
+                for (int i = 0; i < 10; i++) {
+                    pipeline.quantize(gradient, width, height, null, new QuantizationMetrics(), workspaces.get()).toBMP(0);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> round : rounds) {
+            try {
+                round.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {
+                // a failed warm-up only means a slower first request
+            }
+        }
+    }
+
+    // method to answer POST /quantize
+    private void handleQuantize(HttpExchange exchange) throws IOException {
+        long start = System.nanoTime();
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                send(exchange, 405, "Please send the pixels with POST.");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            int width;
+            int height;
+            long deadline;
+            QuantizationOptions options;
+            try {
+                width = parseRequired(parameters, "width");
+                height = parseRequired(parameters, "height");
+                deadline = deadlineMillis;
+                if (parameters.containsKey("deadline")) {
+                    deadline = Math.min(deadline, QuantizationOptions.parsePositive(parameters.get("deadline"), "deadline"));
+                }
+                if (!parameters.containsKey("colors")) {
+                    throw new IllegalArgumentException("Please enter the palette size as the colors parameter.");
+                }
+                Map<String, String> optionParameters = new TreeMap<>(parameters);
+                optionParameters.keySet().removeAll(REQUEST_PARAMETERS);
+                for (String name : optionParameters.keySet()) {
+                    if (!Arrays.asList(OPTION_PARAMETERS).contains(name)) {
+                        throw new IllegalArgumentException("The server does not take the " + name + " parameter. Please enter only width, height, colors, deadline or one of "
+                                + String.join(", ", OPTION_PARAMETERS) + ".");
+                    }
+                }
+                options = QuantizationOptions.parse(parameters.get("colors"), optionParameters);
+                if (options.getPaletteSizes().length != 1) {
+                    throw new IllegalArgumentException("Please enter a single palette size as the colors parameter.");
+                }
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+            long pixelCount = (long) width * height;
+            if (pixelCount > maxPixels) {
+                send(exchange, 413, "Please send at most " + maxPixels + " pixels.");
+                return;
+            }
+            byte[] rgb = exchange.getRequestBody().readNBytes((int) (3 * pixelCount) + 1);
+            if (rgb.length != 3 * pixelCount) {
+                send(exchange, 400, "Please send exactly 3 * width * height bytes of pixels.");
+                return;
+            }
+
+            QuantizationPipeline pipeline;
+            try {
+                pipeline = pipeline(parameters, options);
+            } catch (IllegalArgumentException e) {
+                send(exchange, 400, e.getMessage());
+                return;
+            }
+            QuantizationMetrics metrics = new QuantizationMetrics();
+            Future<byte[]> bmp;
+            try {
+                bmp = workerPool.submit(() -> quantize(pipeline, options, rgb, width, height, metrics));
+            } catch (RejectedExecutionException e) {
+                send(exchange, 503, "Too many requests are waiting; please try again later.");
+                return;
+            }
+
+            // the deadline counts from the arrival of the request, so time spent reading the body and queued is included
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(deadline) - (System.nanoTime() - start);
+            byte[] body;
+            try {
+                body = bmp.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                bmp.cancel(true);
+                send(exchange, 504, "The request did not finish within its deadline of " + deadline + " ms.");
+                return;
+            } catch (InterruptedException e) {
+                bmp.cancel(true);
+                Thread.currentThread().interrupt();
+                send(exchange, 503, "The server is shutting down.");
+                return;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                send(exchange, cause instanceof IllegalArgumentException ? 400 : 500, String.valueOf(cause.getMessage()));
+                return;
+            }
+            // a report keeps a record for each of the latest requests and adds every one to the total itself
+            if (metricsReport != null) {
+                metricsReport.add("request-" + requestCount.incrementAndGet() + "_" + width + "x" + height, metrics);
+            } else {
+                total.merge(metrics);
+            }
+            exchange.getResponseHeaders().set("Content-Type", "image/bmp");
+            exchange.getResponseHeaders().set("X-Elapsed-Millis", Long.toString((System.nanoTime() - start) / 1000000));
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    // method to quantize one request on a worker thread, decoding the pixels into the worker's reused pixel array
+    private byte[] quantize(QuantizationPipeline pipeline, QuantizationOptions options, byte[] rgb, int width, int height,
+            QuantizationMetrics metrics) throws IOException, InterruptedException {
+        QuantizationWorkspace workspace = workspaces.get();
+        int[] pixels = workspace.pixels(width * height);
+        long stageStart = System.nanoTime();
+        for (int p = 0, b = 0; p < pixels.length; p++, b += 3) {
+            pixels[p] = ((rgb[b] & 0xFF) << 16) | ((rgb[b + 1] & 0xFF) << 8) | (rgb[b + 2] & 0xFF);
+        }
+        metrics.addTimeSince(QuantizationMetrics.READ, stageStart);
+        QuantizationResult result = pipeline.quantize(pixels, width, height, null, metrics, workspace);
+        stageStart = System.nanoTime();
+        byte[] bmp = result.toBMP(0, options.getBmpFormat());
+        metrics.addTimeSince(QuantizationMetrics.ENCODE, stageStart);
+        return bmp;
+    }
+
+    // method to get the pipeline kept for a set of options, keyed by every option parameter in sorted order
+    private QuantizationPipeline pipeline(Map<String, String> parameters, QuantizationOptions options) {
+        Map<String, String> key = new TreeMap<>(parameters);
+        key.remove("width");
+        key.remove("height");
+        key.remove("deadline");
+        String settings = key.toString();
+        QuantizationPipeline pipeline = pipelines.get(settings);
+        if (pipeline != null) {
+            return pipeline;
+        }
+        pipeline = new QuantizationPipeline(options, paletteCache);
+        if (pipelines.size() < MAX_PIPELINES) {
+            QuantizationPipeline existing = pipelines.putIfAbsent(settings, pipeline);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        return pipeline;
+    }
+
+    // method to split a query string into decoded name=value pairs (a name without a value gets the value "true", as on
+    // the command line)
+    static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            String[] splitPair = pair.split("=", 2);
+            parameters.put(URLDecoder.decode(splitPair[0], StandardCharsets.UTF_8),
+                    splitPair.length == 2 ? URLDecoder.decode(splitPair[1], StandardCharsets.UTF_8) : "true");
+        }
+        return parameters;
+    }
+
+    private static int parseRequired(Map<String, String> parameters, String name) {
+        if (!parameters.containsKey(name)) {
+            throw new IllegalArgumentException("Please enter the " + name + " parameter.");
+        }
+        return QuantizationOptions.parsePositive(parameters.get(name), name);
+    }
+
+    // method to answer a GET endpoint with a fixed text
+    private static void handleText(HttpExchange exchange, String contentType, String text) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                send(exchange, 405, "Please use GET.");
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Type", contentType);
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+        }
+    }
+
+    // method to answer with a status and a one-line message
+    private static void send(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
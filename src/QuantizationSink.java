@@ -0,0 +1,23 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationSink interface
+ */
+
+import java.io.*;
+
+// interface: receives the palette indices of one palette size as QuantizationPipeline maps them
+// rows arrive in order from the top of the image, a block at a time, packed row-major in an array the pipeline reuses
+// (copy what is kept); close is called once every row has been written, or when quantizing fails
+// BMPWriter is a sink that writes a .bmp file
+public interface QuantizationSink extends Closeable {
+
+    // method to take rowCount rows starting at firstRow (row 0 is the top), packed starting at offset
+    void writeRows(int firstRow, int rowCount, byte[] indices, int offset) throws IOException;
+
+    // interface: opens the sink of each palette size; called once per size, in the order of the palette sizes
+    interface Factory {
+        QuantizationSink open(int numColors, RGB[] palette, int width, int height) throws IOException;
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * QuantizationWorkspace class
+ */
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.*;
+
+// class object: the scratch buffers of quantizing one image, kept so the next image can reuse them
+// holds the pixel array and its conversion into another color space, the copy median cut reorders, the pixel positions
+// of direct mapping, the palette indices of a block of rows, the file read window, the .bmp row buffer and a ColorReducer
+// with its own scratch arrays, and the threads that map a block of rows in stripes
+// buffers only grow (the pixel arrays, which must match the image exactly, are replaced when the image size changes), so
+// once a workspace has quantized the largest image of a batch the later images allocate nothing the size of an image
+// getRetainedBytes() tells how much memory the workspace holds on to, so a memory budget can count it (see BatchRunner)
+// not thread-safe: every thread quantizing images needs its own workspace (see BatchRunner)
+public class QuantizationWorkspace {
+
+    // bytes of the .raw file copied at a time; a multiple of 3 so no pixel is split between two windows
+    private static final int WINDOW_BYTES = 3 << 18;
+
+    private int[] pixels = new int[0];
+    private int[] convertedPixels = new int[0];
+    private int[] container = new int[0];
+    private int[] positions = new int[0];
+    private byte[] indices = new byte[0];
+    private byte[] window;
+    private ByteBuffer rowBuffer;
+    private ColorReducer reducer;
+    private ThreadPoolExecutor remapPool;
+
+    // method to get the size of every buffer the workspace keeps, in bytes
+    public long getRetainedBytes() {
+        long bytes = 4L * pixels.length + 4L * convertedPixels.length + 4L * container.length + 4L * positions.length + indices.length;
+        if (window != null) {
+            bytes += window.length;
+        }
+        if (rowBuffer != null) {
+            bytes += rowBuffer.capacity();
+        }
+        if (reducer != null) {
+            bytes += reducer.getScratchBytes();
+        }
+        return bytes;
+    }
+
+    // method to read an image into the reused pixel array
+    // the array is exactly width * height long, as every stage after reading expects, and is overwritten by the next read
+    public int[] readPixels(RawImageReader reader) throws IOException {
+        long length = (long) reader.getWidth() * reader.getHeight();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("image is too large to hold in one array; use streamRows instead");
+        }
+        if (pixels.length != length) {
+            pixels = new int[(int) length];
+        }
+        if (window == null) {
+            window = new byte[WINDOW_BYTES];
+        }
+        return reader.readPixels(pixels, window);
+    }
+
+    // method to get the reused pixel array with exactly length entries (its contents are left over from earlier use)
+    public int[] pixels(int length) {
+        if (pixels.length != length) {
+            pixels = new int[length];
+        }
+        return pixels;
+    }
+
+    // method to get the reused array the pixels are converted into for a color space other than RGB (exactly length long)
+    public int[] convertedPixels(int length) {
+        if (convertedPixels.length != length) {
+            convertedPixels = new int[length];
+        }
+        return convertedPixels;
+    }
+
+    // method to copy the first length pixels into the reused container median cut reorders
+    // the container may be longer than length; only its first length entries are meaningful
+    public int[] copyToContainer(int[] source, int length) {
+        if (container.length < length) {
+            container = new int[length];
+        }
+        System.arraycopy(source, 0, container, 0, length);
+        return container;
+    }
+
+    // method to get the reused positions array with its first length entries set to 0, 1, 2, ...
+    public int[] positions(int length) {
+        if (positions.length < length) {
+            positions = new int[length];
+        }
+        for (int p = 0; p < length; p++) {
+            positions[p] = p;
+        }
+        return positions;
+    }
+
+    // method to get a reused array of at least length palette indices (its contents are left over from earlier use)
+    public byte[] indices(int length) {
+        if (indices.length < length) {
+            indices = new byte[length];
+        }
+        return indices;
+    }
+
+    // method to get a reused buffer large enough for the given number of .bmp rows (rows are padded to 4 bytes)
+    public ByteBuffer rowBuffer(int width, int rows) {
+        int bytes = ((width + 3) & ~3) * rows;
+        if (rowBuffer == null || rowBuffer.capacity() < bytes) {
+            rowBuffer = ByteBuffer.allocate(bytes);
+        }
+        return rowBuffer;
+    }
+
+    // method to get the reused pool that maps rows on at least the given number of threads
+    // the threads are daemons and exit after a minute idle, so a workspace that is dropped or left unused holds none
+    public ExecutorService remapPool(int threads) {
+        if (remapPool == null) {
+            remapPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "remap");
+                thread.setDaemon(true);
+                return thread;
+            });
+            remapPool.allowCoreThreadTimeOut(true);
+        } else if (remapPool.getMaximumPoolSize() < threads) {
+            remapPool.setMaximumPoolSize(threads);
+            remapPool.setCorePoolSize(threads);
+        }
+        return remapPool;
+    }
+
+    // method to get the reused ColorReducer, reset to cut the first length entries of the container
+    public ColorReducer reducer(int[] container, int length, int numberOfColors) {
+        if (reducer == null) {
+            reducer = new ColorReducer(container, numberOfColors);
+        }
+        reducer.reset(container, length, numberOfColors);
+        return reducer;
+    }
+
+    // method to get the reused ColorReducer, reset to cut the bins of a histogram
+    public ColorReducer reducer(ColorHistogram histogram, int numberOfColors) {
+        if (reducer == null) {
+            reducer = new ColorReducer(histogram, numberOfColors);
+        } else {
+            reducer.reset(histogram, numberOfColors);
+        }
+        return reducer;
+    }
+}
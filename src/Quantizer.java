@@ -0,0 +1,58 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * Quantizer interface
+ */
+
+// interface: finds color palettes for an image given as pixels packed as 0xRRGGBB
+// palettes can have any size from 1 to 256; slots the engine cannot fill (the image has fewer colors) are black
+// the pixel array is never modified
+public interface Quantizer {
+
+    // names accepted by create()
+    String[] ENGINES = {"mediancut", "octree", "wu", "kmeans"};
+
+    // method to find the palette of each given size
+    RGB[][] findPalettes(int[] pixels, int[] paletteSizes);
+
+    // method to find a single palette
+    default RGB[] findPalette(int[] pixels, int numColors) {
+        return findPalettes(pixels, new int[] {numColors})[0];
+    }
+
+    // method to build a quantizer by engine name
+    // mediancut: the median cut of ColorReducer, cut once for all sizes (fast)
+    // octree: octree reduction, streamed over the pixels with a bounded number of nodes (bounded memory, lowest quality)
+    // wu: Wu's variance-minimizing cut over 3D cumulative color moments (fast, good quality)
+    // kmeans: median cut palettes refined by k-means iterations over the distinct colors (slowest, best quality)
+    static Quantizer create(String engine, int parallelism) {
+        switch (engine) {
+            case "mediancut":
+                return new MedianCutQuantizer(parallelism);
+            case "octree":
+                return new OctreeQuantizer();
+            case "wu":
+                return new WuQuantizer();
+            case "kmeans":
+                return new KMeansQuantizer(parallelism);
+            default:
+                throw new IllegalArgumentException("unknown quantizer: " + engine);
+        }
+    }
+
+    // method to check a palette size
+    static void checkPaletteSize(int numColors) {
+        if (numColors < 1 || numColors > 256) {
+            throw new IllegalArgumentException("palette size must be between 1 and 256");
+        }
+    }
+
+    // method to fill the slots of a palette past the given count with black
+    static RGB[] fillOut(RGB[] palette, int filled) {
+        for (int i = filled; i < palette.length; i++) {
+            palette[i] = new RGB(0, 0, 0);
+        }
+        return palette;
+    }
+}
@@ -93,6 +93,51 @@ public class RGB {
         return (this.R - pxl.R)*(this.R - pxl.R) + (this.G - pxl.G)*(this.G - pxl.G) + (this.B - pxl.B)*(this.B - pxl.B);
     }
 
+    // method to pack the RGB object into a single int as 0xRRGGBB
+    public int toPacked() {
+        return pack(R, G, B);
+    }
+
+    // static helpers for pixels stored as packed 0xRRGGBB ints (used for the pixel buffers so no object is allocated per pixel)
+    public static int pack(int R, int G, int B) {
+        return (R << 16) | (G << 8) | B;
+    }
+
+    public static RGB fromPacked(int pixel) {
+        return new RGB(red(pixel), green(pixel), blue(pixel));
+    }
+
+    public static int red(int pixel) {
+        return (pixel >> 16) & 0xFF;
+    }
+
+    public static int green(int pixel) {
+        return (pixel >> 8) & 0xFF;
+    }
+
+    public static int blue(int pixel) {
+        return pixel & 0xFF;
+    }
+
+    // access method for a packed pixel allowing the color channel to be specified as a character argument
+    public static int channel(int pixel, char color) {
+        if (color == 'R') {
+            return (pixel >> 16) & 0xFF;
+        } else if (color == 'G') {
+            return (pixel >> 8) & 0xFF;
+        } else {
+            return pixel & 0xFF;
+        }
+    }
+
+    // method to find the mean average squared distance between two packed pixels
+    public static int meanSqdDist(int pixel, int otherPixel) {
+        int dR = ((pixel >> 16) & 0xFF) - ((otherPixel >> 16) & 0xFF);
+        int dG = ((pixel >> 8) & 0xFF) - ((otherPixel >> 8) & 0xFF);
+        int dB = (pixel & 0xFF) - (otherPixel & 0xFF);
+        return dR*dR + dG*dG + dB*dB;
+    }
+
     // method to print the contents of the RGB object
     public void printData() {
         System.out.println("R: " + this.R + "\tG: " + this.G + "\tB: " + this.B);
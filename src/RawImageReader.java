@@ -0,0 +1,189 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * RawImageReader class
+ */
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+// class object: reads .raw images (3 bytes per pixel, R then G then B, row by row) into packed 0xRRGGBB pixels
+// the file is read a window of whole pixels at a time into a reused byte array and decoded from it, instead of one read
+// call per byte
+// readPixels() fills one pixel array for the whole image; streamRows() hands over a few rows at a time in a reused buffer,
+// so a histogram or sampler can be fed from an image that does not fit in memory
+public class RawImageReader {
+
+    // largest number of bytes read at once
+    private static final int WINDOW_BYTES = 1 << 24;
+
+    private Path path;
+    private String name; // image name used for output files
+    private int width;
+    private int height;
+
+    // callback for streamRows: pixels holds rowCount rows starting at firstRow, packed and row-major from index 0
+    // the array is reused for the next chunk, so it must not be kept after the call returns
+    public interface RowHandler {
+        void acceptRows(int firstRow, int rowCount, int[] pixels) throws IOException;
+    }
+
+    // constructor
+    public RawImageReader(String path, int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("width and height must be positive");
+        }
+        this.path = Paths.get(path);
+        String filename = this.path.getFileName().toString();
+        this.name = filename.contains(".") ? filename.substring(0, filename.indexOf('.')) : filename;
+        this.width = width;
+        this.height = height;
+    }
+
+    // method to open a .raw file whose filename gives its dimensions
+    // filename must be formatted as: name_widthxheight.raw; the name becomes the reader's name
+    public static RawImageReader forFile(String path) {
+        String formatMessage = "Please enter enter a path with file in the format: path/name_widthxheight.raw.\n"
+                + "Where width and height are numbers specifying the width and height of the .raw file in the filename.";
+
+        // split path to separate filename
+        String[] splitPath = path.split("/");
+        String filename = splitPath[splitPath.length-1];
+
+        String[] splitExtension = filename.split("\\.",2);
+        if ((splitExtension.length == 1) ||  !splitExtension[splitExtension.length-1].equals("raw")) {
+            throw new IllegalArgumentException("Please enter a path with file ending in .raw extension.");
+        }
+        String[] splitDimensions = splitExtension[0].split("_",2);
+        if (splitDimensions.length != 2) {
+            throw new IllegalArgumentException(formatMessage);
+        }
+        String[] splitWH = splitDimensions[1].split("x",2);
+        if (splitWH.length != 2) {
+            throw new IllegalArgumentException(formatMessage);
+        }
+        int width;
+        int height;
+        try {
+            width = Integer.parseInt(splitWH[0]);
+            height = Integer.parseInt(splitWH[1]);
+        } catch (Exception e) {
+            throw new IllegalArgumentException(formatMessage);
+        }
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException(formatMessage);
+        }
+        RawImageReader reader = new RawImageReader(path, width, height);
+        reader.name = splitDimensions[0];
+        return reader;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path.toString();
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // method to read the whole image into a row-major array of packed pixels
+    public int[] readPixels() throws IOException {
+        if ((long) width * height > Integer.MAX_VALUE) {
+            throw new IOException("image is too large to hold in one array; use streamRows instead");
+        }
+        return readPixels(new int[width * height], new byte[windowBytes(height)]);
+    }
+
+    // method to read the whole image into the given pixel array (at least width * height long), copying the file
+    // through the given byte array, whose length must be a multiple of 3; returns the pixel array
+    // lets a caller that reads many images keep reusing the same two arrays (see QuantizationWorkspace)
+    public int[] readPixels(int[] pixels, byte[] window) throws IOException {
+        if (pixels.length < (long) width * height) {
+            throw new IllegalArgumentException("the pixel array is shorter than the image");
+        }
+        if (window.length == 0 || window.length % 3 != 0) {
+            throw new IllegalArgumentException("the window length must be a positive multiple of 3");
+        }
+        try (FileChannel channel = openChannel()) {
+            decodeRows(channel, 0, height, window, pixels);
+        }
+        return pixels;
+    }
+
+    // method to read the image a chunk of rows at a time, passing each chunk to the handler in order from the top row
+    public void streamRows(int rowsPerChunk, RowHandler handler) throws IOException {
+        if (rowsPerChunk <= 0) {
+            throw new IllegalArgumentException("rows per chunk must be positive");
+        }
+        rowsPerChunk = Math.min(rowsPerChunk, Math.min(height, Integer.MAX_VALUE / width));
+        try (FileChannel channel = openChannel()) {
+            int[] pixels = new int[rowsPerChunk * width];
+            byte[] bytes = new byte[windowBytes(rowsPerChunk)];
+            for (int firstRow = 0; firstRow < height; firstRow += rowsPerChunk) {
+                int rowCount = Math.min(rowsPerChunk, height - firstRow);
+                decodeRows(channel, firstRow, rowCount, bytes, pixels);
+                handler.acceptRows(firstRow, rowCount, pixels);
+            }
+        }
+    }
+
+    // method to find a good number of rows per chunk for streamRows: about one read window
+    public int defaultRowsPerChunk() {
+        return (int) Math.max(1, Math.min(height, WINDOW_BYTES / (3L * width)));
+    }
+
+    // method to open the file and check that it holds every pixel
+    private FileChannel openChannel() throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        if (channel.size() < 3L * width * height) {
+            channel.close();
+            throw new EOFException(path + " is shorter than " + width + "x" + height + " pixels");
+        }
+        return channel;
+    }
+
+    // method to size the copy buffer: a window, or less when the rows to decode are fewer (always a multiple of 3)
+    private int windowBytes(int rows) {
+        return (int) Math.min(3L * width * rows, WINDOW_BYTES - WINDOW_BYTES % 3);
+    }
+
+    // method to decode rowCount rows starting at firstRow into pixels from index 0
+    // the rows are read in windows of whole pixels straight into bytes, which is reused for every window, and decoded from it
+    private void decodeRows(FileChannel channel, int firstRow, int rowCount, byte[] bytes, int[] pixels) throws IOException {
+        long position = 3L * width * firstRow;
+        long remaining = 3L * width * rowCount;
+        int pixelIndex = 0;
+        while (remaining > 0) {
+            int windowBytes = (int) Math.min(remaining, bytes.length);
+            ByteBuffer window = ByteBuffer.wrap(bytes, 0, windowBytes);
+            while (window.hasRemaining()) {
+                if (channel.read(window, position + window.position()) < 0) {
+                    throw new EOFException(path + " is shorter than " + width + "x" + height + " pixels");
+                }
+            }
+            for (int b = 0; b < windowBytes; b += 3) {
+                pixels[pixelIndex++] = ((bytes[b] & 0xFF) << 16) | ((bytes[b + 1] & 0xFF) << 8) | (bytes[b + 2] & 0xFF);
+            }
+            position += windowBytes;
+            remaining -= windowBytes;
+        }
+    }
+
+    // method to build a color histogram straight from the file without holding the whole image
+    public ColorHistogram readHistogram(int bitsPerChannel) throws IOException {
+        ColorHistogram histogram = new ColorHistogram(bitsPerChannel);
+        streamRows(defaultRowsPerChunk(), (firstRow, rowCount, pixels) -> histogram.add(pixels, 0, rowCount * width));
+        return histogram;
+    }
+}
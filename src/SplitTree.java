@@ -0,0 +1,182 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * SplitTree class
+ */
+
+// class object: the box tree built by median cut
+// every internal node records the channel its box was split on and a threshold: colors whose channel value is
+// less than or equal to the threshold belong to the lower (left) child, larger values to the upper (right) child
+// (values equal to the threshold can occur in both children, since the median split may fall inside a run of equal values)
+// every leaf records the palette slot of its box
+// every node also records the channel bounds of its box (see getLargestRange)
+// nodes are addressed by id; a missing child (an empty box) has id -1
+// balanced cuts use the complete binary tree layout (children of n at 2n+1 and 2n+2); priority cuts number their nodes
+// in creation order, and nothing relies on the layout (smaller palettes are read off either kind with prune)
+public class SplitTree {
+
+    private int[] splitShifts; // bit offset of the split channel in a packed pixel (16, 8 or 0)
+    private int[] thresholds;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private int[] paletteSlots; // -1 for internal nodes and unused ids
+    private int[] minColors; // per-channel minimum of the node's box, packed like a pixel
+    private int[] maxColors; // per-channel maximum of the node's box, packed like a pixel
+    private boolean[] present; // false for ids no box was recorded at
+
+    // constructor for a tree with room for the given number of node ids
+    public SplitTree(int capacity) {
+        splitShifts = new int[capacity];
+        thresholds = new int[capacity];
+        leftChildren = new int[capacity];
+        rightChildren = new int[capacity];
+        paletteSlots = new int[capacity];
+        minColors = new int[capacity];
+        maxColors = new int[capacity];
+        present = new boolean[capacity];
+        java.util.Arrays.fill(leftChildren, -1);
+        java.util.Arrays.fill(rightChildren, -1);
+        java.util.Arrays.fill(paletteSlots, -1);
+    }
+
+    // method to record that a box was split on a channel
+    void setSplit(int node, char color, int threshold, int leftChild, int rightChild) {
+        splitShifts[node] = color == 'R' ? 16 : color == 'G' ? 8 : 0;
+        thresholds[node] = threshold;
+        leftChildren[node] = leftChild;
+        rightChildren[node] = rightChild;
+    }
+
+    // method to record that a box became the palette color at the given slot
+    void setLeaf(int node, int paletteSlot) {
+        paletteSlots[node] = paletteSlot;
+    }
+
+    // method to record the channel bounds of a node's box as {minR, maxR, minG, maxG, minB, maxB}
+    void setBounds(int node, int[] bounds) {
+        minColors[node] = RGB.pack(bounds[0], bounds[2], bounds[4]);
+        maxColors[node] = RGB.pack(bounds[1], bounds[3], bounds[5]);
+        present[node] = true;
+    }
+
+    // method to build the tree of a smaller palette by turning the given nodes into leaves: leafNodes[slot] is the node of
+    // that palette slot (-1 for a slot with no box); the nodes below them are dropped and the nodes above them kept
+    // the nodes must cut every path from the root, and must not be ancestors of each other
+    public SplitTree prune(int[] leafNodes) {
+        int[] slotOfNode = new int[getCapacity()];
+        java.util.Arrays.fill(slotOfNode, -1);
+        for (int slot = 0; slot < leafNodes.length; slot++) {
+            int node = leafNodes[slot];
+            if (node >= 0 && node < getCapacity() && present[node]) {
+                slotOfNode[node] = slot;
+            }
+        }
+        SplitTree pruned = new SplitTree(getCapacity());
+        if (present[getRoot()]) {
+            copyPruned(pruned, getRoot(), slotOfNode);
+        }
+        return pruned;
+    }
+
+    // recursive method to copy a node into a pruned tree, as a leaf if it has a slot and otherwise with its split
+    private void copyPruned(SplitTree pruned, int node, int[] slotOfNode) {
+        pruned.copyBounds(this, node);
+        if (slotOfNode[node] >= 0) {
+            pruned.paletteSlots[node] = slotOfNode[node];
+            return;
+        }
+        pruned.splitShifts[node] = splitShifts[node];
+        pruned.thresholds[node] = thresholds[node];
+        pruned.leftChildren[node] = leftChildren[node];
+        pruned.rightChildren[node] = rightChildren[node];
+        if (leftChildren[node] >= 0) {
+            copyPruned(pruned, leftChildren[node], slotOfNode);
+        }
+        if (rightChildren[node] >= 0) {
+            copyPruned(pruned, rightChildren[node], slotOfNode);
+        }
+    }
+
+    // method to copy the bounds of a node from another tree
+    private void copyBounds(SplitTree source, int node) {
+        minColors[node] = source.minColors[node];
+        maxColors[node] = source.maxColors[node];
+        present[node] = true;
+    }
+
+    // method to walk the tree from the root down to the leaf whose box contains the packed pixel
+    // returns the leaf's palette slot in O(depth)
+    public int findPaletteSlot(int pixel) {
+        int node = getRoot();
+        while (paletteSlots[node] < 0) {
+            int next = goesLeft(node, pixel) ? leftChildren[node] : rightChildren[node];
+            // an empty child never gets pixels, so the walk continues into the other one
+            if (next < 0) {
+                next = leftChildren[node] >= 0 ? leftChildren[node] : rightChildren[node];
+            }
+            node = next;
+        }
+        return paletteSlots[node];
+    }
+
+    // the root always has id 0
+    public int getRoot() {
+        return 0;
+    }
+
+    public int getCapacity() {
+        return paletteSlots.length;
+    }
+
+    public boolean isPresent(int node) {
+        return present[node];
+    }
+
+    // method to count the splits of the tree (the nodes that are present and not leaves)
+    public int getSplitCount() {
+        int splits = 0;
+        for (int node = 0; node < present.length; node++) {
+            if (present[node] && paletteSlots[node] < 0) {
+                splits++;
+            }
+        }
+        return splits;
+    }
+
+    // method to get the widest channel range of a node's box
+    public int getLargestRange(int node) {
+        int min = minColors[node];
+        int max = maxColors[node];
+        return Math.max(RGB.red(max) - RGB.red(min), Math.max(RGB.green(max) - RGB.green(min), RGB.blue(max) - RGB.blue(min)));
+    }
+
+    public boolean isLeaf(int node) {
+        return paletteSlots[node] >= 0;
+    }
+
+    public int getPaletteSlot(int node) {
+        return paletteSlots[node];
+    }
+
+    public int getLeftChild(int node) {
+        return leftChildren[node];
+    }
+
+    public int getRightChild(int node) {
+        return rightChildren[node];
+    }
+
+    public int getSplitShift(int node) {
+        return splitShifts[node];
+    }
+
+    public int getThreshold(int node) {
+        return thresholds[node];
+    }
+
+    // method to check which side of a node's split a packed pixel falls on
+    public boolean goesLeft(int node, int pixel) {
+        return ((pixel >> splitShifts[node]) & 0xFF) <= thresholds[node];
+    }
+}
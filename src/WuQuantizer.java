@@ -0,0 +1,322 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * WuQuantizer class
+ */
+
+// class object: Xiaolin Wu's color quantizer ("Efficient Statistical Computations for Optimal Color Quantization", 1991)
+// the pixels are counted in a 32x32x32 histogram (5 bits per channel) holding, per cell, the pixel count, the channel
+// sums and the sum of squared channel values; these moments are then made cumulative over the cube, so the moments of
+// any box of cells are found from its 8 corners in constant time
+// starting from the whole cube, the box with the largest variance is split repeatedly, each time on the channel and
+// plane that leave the two halves with the smallest total squared error; the colors are the mean of each box's pixels
+// the boxes of a smaller palette are the first boxes of a larger one, so every size is read off a single run
+public class WuQuantizer implements Quantizer {
+
+    private static final int SIDE = 33; // 32 cells per channel plus a row of zeros for the cumulative sums
+    private static final int RED = 0;
+    private static final int GREEN = 1;
+    private static final int BLUE = 2;
+
+    // cumulative moments, indexed by (r * SIDE + g) * SIDE + b
+    private long[] weights;
+    private long[] momentsR;
+    private long[] momentsG;
+    private long[] momentsB;
+    private double[] moments2;
+
+    // a box of cells: lower bounds exclusive, upper bounds inclusive
+    private static class Box {
+        int r0;
+        int r1;
+        int g0;
+        int g1;
+        int b0;
+        int b1;
+        int volume;
+    }
+
+    @Override
+    public RGB[][] findPalettes(int[] pixels, int[] paletteSizes) {
+        int largestColors = 1;
+        for (int numColors : paletteSizes) {
+            Quantizer.checkPaletteSize(numColors);
+            largestColors = Math.max(largestColors, numColors);
+        }
+        buildHistogram(pixels);
+        computeCumulativeMoments();
+
+        Box[] boxes = new Box[largestColors];
+        double[] variances = new double[largestColors];
+        boxes[0] = new Box();
+        boxes[0].r1 = boxes[0].g1 = boxes[0].b1 = SIDE - 1;
+        boxes[0].volume = (SIDE - 1) * (SIDE - 1) * (SIDE - 1);
+
+        RGB[][] palettes = new RGB[paletteSizes.length][];
+        int boxCount = 1;
+        snapshot(boxes, boxCount, paletteSizes, palettes);
+        int next = 0;
+        while (boxCount < largestColors) {
+            Box split = new Box();
+            if (cut(boxes[next], split)) {
+                variances[next] = boxes[next].volume > 1 ? variance(boxes[next]) : 0;
+                boxes[boxCount] = split;
+                variances[boxCount] = split.volume > 1 ? variance(split) : 0;
+                boxCount++;
+                snapshot(boxes, boxCount, paletteSizes, palettes);
+            } else {
+                variances[next] = 0; // this box cannot be split
+            }
+
+            next = 0;
+            for (int k = 1; k < boxCount; k++) {
+                if (variances[k] > variances[next]) {
+                    next = k;
+                }
+            }
+            if (variances[next] <= 0) {
+                break; // every box holds a single color
+            }
+        }
+
+        // sizes larger than the number of boxes found get the final boxes
+        for (int i = 0; i < paletteSizes.length; i++) {
+            if (palettes[i] == null) {
+                palettes[i] = palette(boxes, boxCount, paletteSizes[i]);
+            }
+        }
+        return palettes;
+    }
+
+    // method to record the palettes of the requested sizes equal to the current number of boxes
+    private void snapshot(Box[] boxes, int boxCount, int[] paletteSizes, RGB[][] palettes) {
+        for (int i = 0; i < paletteSizes.length; i++) {
+            if (paletteSizes[i] == boxCount) {
+                palettes[i] = palette(boxes, boxCount, paletteSizes[i]);
+            }
+        }
+    }
+
+    // method to make a palette of the mean color of each non-empty box
+    private RGB[] palette(Box[] boxes, int boxCount, int numColors) {
+        RGB[] palette = new RGB[numColors];
+        int filled = 0;
+        for (int k = 0; k < boxCount; k++) {
+            long weight = volume(boxes[k], weights);
+            if (weight > 0) {
+                palette[filled++] = new RGB((int) ((volume(boxes[k], momentsR) + weight / 2) / weight),
+                        (int) ((volume(boxes[k], momentsG) + weight / 2) / weight), (int) ((volume(boxes[k], momentsB) + weight / 2) / weight));
+            }
+        }
+        return Quantizer.fillOut(palette, filled);
+    }
+
+    // method to count the pixels in the 5 bit histogram, with their channel sums and squared sums
+    private void buildHistogram(int[] pixels) {
+        int cells = SIDE * SIDE * SIDE;
+        weights = new long[cells];
+        momentsR = new long[cells];
+        momentsG = new long[cells];
+        momentsB = new long[cells];
+        moments2 = new double[cells];
+        for (int pixel : pixels) {
+            int R = RGB.red(pixel);
+            int G = RGB.green(pixel);
+            int B = RGB.blue(pixel);
+            int index = index((R >> 3) + 1, (G >> 3) + 1, (B >> 3) + 1);
+            weights[index]++;
+            momentsR[index] += R;
+            momentsG[index] += G;
+            momentsB[index] += B;
+            moments2[index] += R * R + G * G + B * B;
+        }
+    }
+
+    // method to turn the histogram into cumulative moments: each cell holds the sums over every cell at or below it
+    private void computeCumulativeMoments() {
+        long[] area = new long[SIDE];
+        long[] areaR = new long[SIDE];
+        long[] areaG = new long[SIDE];
+        long[] areaB = new long[SIDE];
+        double[] area2 = new double[SIDE];
+        for (int r = 1; r < SIDE; r++) {
+            java.util.Arrays.fill(area, 0);
+            java.util.Arrays.fill(areaR, 0);
+            java.util.Arrays.fill(areaG, 0);
+            java.util.Arrays.fill(areaB, 0);
+            java.util.Arrays.fill(area2, 0);
+            for (int g = 1; g < SIDE; g++) {
+                long line = 0;
+                long lineR = 0;
+                long lineG = 0;
+                long lineB = 0;
+                double line2 = 0;
+                for (int b = 1; b < SIDE; b++) {
+                    int index = index(r, g, b);
+                    line += weights[index];
+                    lineR += momentsR[index];
+                    lineG += momentsG[index];
+                    lineB += momentsB[index];
+                    line2 += moments2[index];
+                    area[b] += line;
+                    areaR[b] += lineR;
+                    areaG[b] += lineG;
+                    areaB[b] += lineB;
+                    area2[b] += line2;
+                    int below = index(r - 1, g, b);
+                    weights[index] = weights[below] + area[b];
+                    momentsR[index] = momentsR[below] + areaR[b];
+                    momentsG[index] = momentsG[below] + areaG[b];
+                    momentsB[index] = momentsB[below] + areaB[b];
+                    moments2[index] = moments2[below] + area2[b];
+                }
+            }
+        }
+    }
+
+    private static int index(int r, int g, int b) {
+        return (r * SIDE + g) * SIDE + b;
+    }
+
+    // method to sum a moment over a box from the cumulative moments at its corners
+    private static long volume(Box box, long[] moment) {
+        return moment[index(box.r1, box.g1, box.b1)] - moment[index(box.r1, box.g1, box.b0)]
+                - moment[index(box.r1, box.g0, box.b1)] + moment[index(box.r1, box.g0, box.b0)]
+                - moment[index(box.r0, box.g1, box.b1)] + moment[index(box.r0, box.g1, box.b0)]
+                + moment[index(box.r0, box.g0, box.b1)] - moment[index(box.r0, box.g0, box.b0)];
+    }
+
+    private static double volume(Box box, double[] moment) {
+        return moment[index(box.r1, box.g1, box.b1)] - moment[index(box.r1, box.g1, box.b0)]
+                - moment[index(box.r1, box.g0, box.b1)] + moment[index(box.r1, box.g0, box.b0)]
+                - moment[index(box.r0, box.g1, box.b1)] + moment[index(box.r0, box.g1, box.b0)]
+                + moment[index(box.r0, box.g0, box.b1)] - moment[index(box.r0, box.g0, box.b0)];
+    }
+
+    // method to sum the part of a box's moment that depends on its lower bound along a channel
+    private static long bottom(Box box, int channel, long[] moment) {
+        switch (channel) {
+            case RED:
+                return -moment[index(box.r0, box.g1, box.b1)] + moment[index(box.r0, box.g1, box.b0)]
+                        + moment[index(box.r0, box.g0, box.b1)] - moment[index(box.r0, box.g0, box.b0)];
+            case GREEN:
+                return -moment[index(box.r1, box.g0, box.b1)] + moment[index(box.r1, box.g0, box.b0)]
+                        + moment[index(box.r0, box.g0, box.b1)] - moment[index(box.r0, box.g0, box.b0)];
+            default:
+                return -moment[index(box.r1, box.g1, box.b0)] + moment[index(box.r1, box.g0, box.b0)]
+                        + moment[index(box.r0, box.g1, box.b0)] - moment[index(box.r0, box.g0, box.b0)];
+        }
+    }
+
+    // method to sum the part of a box's moment that depends on its upper bound along a channel, with that bound moved to position
+    private static long top(Box box, int channel, int position, long[] moment) {
+        switch (channel) {
+            case RED:
+                return moment[index(position, box.g1, box.b1)] - moment[index(position, box.g1, box.b0)]
+                        - moment[index(position, box.g0, box.b1)] + moment[index(position, box.g0, box.b0)];
+            case GREEN:
+                return moment[index(box.r1, position, box.b1)] - moment[index(box.r1, position, box.b0)]
+                        - moment[index(box.r0, position, box.b1)] + moment[index(box.r0, position, box.b0)];
+            default:
+                return moment[index(box.r1, box.g1, position)] - moment[index(box.r1, box.g0, position)]
+                        - moment[index(box.r0, box.g1, position)] + moment[index(box.r0, box.g0, position)];
+        }
+    }
+
+    // method to find the sum of squared distances of a box's pixels from their mean
+    private double variance(Box box) {
+        double dr = volume(box, momentsR);
+        double dg = volume(box, momentsG);
+        double db = volume(box, momentsB);
+        double xx = volume(box, moments2);
+        return xx - (dr * dr + dg * dg + db * db) / volume(box, weights);
+    }
+
+    // method to find the plane along a channel that splits a box into the halves with the largest sum of
+    // (squared channel sums / pixel count), which is the split with the least total squared error
+    // returns the score, and the plane in cut[0] (-1 when no plane leaves both halves with pixels)
+    private double maximize(Box box, int channel, int first, int last, int[] cut, long wholeR, long wholeG, long wholeB, long wholeW) {
+        long baseR = bottom(box, channel, momentsR);
+        long baseG = bottom(box, channel, momentsG);
+        long baseB = bottom(box, channel, momentsB);
+        long baseW = bottom(box, channel, weights);
+        double max = 0;
+        cut[0] = -1;
+        for (int i = first; i < last; i++) {
+            long halfR = baseR + top(box, channel, i, momentsR);
+            long halfG = baseG + top(box, channel, i, momentsG);
+            long halfB = baseB + top(box, channel, i, momentsB);
+            long halfW = baseW + top(box, channel, i, weights);
+            if (halfW == 0) {
+                continue;
+            }
+            double score = ((double) halfR * halfR + (double) halfG * halfG + (double) halfB * halfB) / halfW;
+            halfR = wholeR - halfR;
+            halfG = wholeG - halfG;
+            halfB = wholeB - halfB;
+            halfW = wholeW - halfW;
+            if (halfW == 0) {
+                continue;
+            }
+            score += ((double) halfR * halfR + (double) halfG * halfG + (double) halfB * halfB) / halfW;
+            if (score > max) {
+                max = score;
+                cut[0] = i;
+            }
+        }
+        return max;
+    }
+
+    // method to split a box at its best plane; the upper part goes into the second box
+    // returns false when the box cannot be split
+    private boolean cut(Box box, Box upper) {
+        long wholeR = volume(box, momentsR);
+        long wholeG = volume(box, momentsG);
+        long wholeB = volume(box, momentsB);
+        long wholeW = volume(box, weights);
+
+        int[] cutR = new int[1];
+        int[] cutG = new int[1];
+        int[] cutB = new int[1];
+        double maxR = maximize(box, RED, box.r0 + 1, box.r1, cutR, wholeR, wholeG, wholeB, wholeW);
+        double maxG = maximize(box, GREEN, box.g0 + 1, box.g1, cutG, wholeR, wholeG, wholeB, wholeW);
+        double maxB = maximize(box, BLUE, box.b0 + 1, box.b1, cutB, wholeR, wholeG, wholeB, wholeW);
+
+        int channel;
+        if (maxR >= maxG && maxR >= maxB) {
+            channel = RED;
+            if (cutR[0] < 0) {
+                return false;
+            }
+        } else if (maxG >= maxR && maxG >= maxB) {
+            channel = GREEN;
+        } else {
+            channel = BLUE;
+        }
+
+        upper.r1 = box.r1;
+        upper.g1 = box.g1;
+        upper.b1 = box.b1;
+        switch (channel) {
+            case RED:
+                upper.r0 = box.r1 = cutR[0];
+                upper.g0 = box.g0;
+                upper.b0 = box.b0;
+                break;
+            case GREEN:
+                upper.g0 = box.g1 = cutG[0];
+                upper.r0 = box.r0;
+                upper.b0 = box.b0;
+                break;
+            default:
+                upper.b0 = box.b1 = cutB[0];
+                upper.r0 = box.r0;
+                upper.g0 = box.g0;
+                break;
+        }
+        box.volume = (box.r1 - box.r0) * (box.g1 - box.g0) * (box.b1 - box.b0);
+        upper.volume = (upper.r1 - upper.r0) * (upper.g1 - upper.g0) * (upper.b1 - upper.b0);
+        return true;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Author: Brian Henry
+ * Project: Color quantization
+ * Purpose: Reduce color space according to median cut algorithm in .raw photos; output compressed photos as .bmp files
+ * YCbCrColorSpace class
+ */
+
+// class object: BT.601 YCbCr with weighted chroma: Y in the first channel, and Cb and Cr around 128 scaled by
+// CHROMA_WEIGHT, so a chroma difference counts for less than the same luma difference in every squared distance
+// the transform is linear, so each output channel is a sum of three precomputed table entries (one per input channel, in
+// 16.16 fixed point) and converting a pixel takes nine table reads and no floating point
+public class YCbCrColorSpace implements ColorSpace {
+
+    // scale of the chroma channels relative to luma
+    public static final double CHROMA_WEIGHT = 0.5;
+
+    // BT.601 coefficients: rows Y, Cb, Cr; columns R, G, B
+    private static final double[][] FORWARD = {
+        {0.299, 0.587, 0.114},
+        {-0.168736, -0.331264, 0.5},
+        {0.5, -0.418688, -0.081312}
+    };
+
+    // tables[out][in * 256 + value]: the contribution of one input channel value to one output channel
+    private final int[][] tables = new int[3][3 * 256];
+
+    // constructor: fills the tables, with the 128 offset of the chroma channels folded into the red entries
+    public YCbCrColorSpace() {
+        for (int out = 0; out < 3; out++) {
+            double scale = out == 0 ? 1 : CHROMA_WEIGHT;
+            for (int in = 0; in < 3; in++) {
+                for (int value = 0; value < 256; value++) {
+                    double contribution = scale * FORWARD[out][in] * value + (out != 0 && in == 0 ? 128 : 0);
+                    tables[out][in * 256 + value] = (int) Math.round(contribution * 65536);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int fromRGB(int pixel) {
+        int R = (pixel >> 16) & 0xFF;
+        int G = (pixel >> 8) & 0xFF;
+        int B = pixel & 0xFF;
+        int[] tableY = tables[0];
+        int[] tableCb = tables[1];
+        int[] tableCr = tables[2];
+        int Y = fixedToByte(tableY[R] + tableY[256 + G] + tableY[512 + B]);
+        int Cb = fixedToByte(tableCb[R] + tableCb[256 + G] + tableCb[512 + B]);
+        int Cr = fixedToByte(tableCr[R] + tableCr[256 + G] + tableCr[512 + B]);
+        return (Y << 16) | (Cb << 8) | Cr;
+    }
+
+    @Override
+    public void fromRGB(int[] pixels, int pixelOffset, int[] target, int targetOffset, int length) {
+        int[] tableY = tables[0];
+        int[] tableCb = tables[1];
+        int[] tableCr = tables[2];
+        for (int i = 0; i < length; i++) {
+            int pixel = pixels[pixelOffset + i];
+            int R = (pixel >> 16) & 0xFF;
+            int G = 256 + ((pixel >> 8) & 0xFF);
+            int B = 512 + (pixel & 0xFF);
+            int Y = fixedToByte(tableY[R] + tableY[G] + tableY[B]);
+            int Cb = fixedToByte(tableCb[R] + tableCb[G] + tableCb[B]);
+            int Cr = fixedToByte(tableCr[R] + tableCr[G] + tableCr[B]);
+            target[targetOffset + i] = (Y << 16) | (Cb << 8) | Cr;
+        }
+    }
+
+    @Override
+    public int toRGB(int color) {
+        double Y = (color >> 16) & 0xFF;
+        double Cb = (((color >> 8) & 0xFF) - 128) / CHROMA_WEIGHT;
+        double Cr = ((color & 0xFF) - 128) / CHROMA_WEIGHT;
+        return RGB.pack(clamp(Y + 1.402 * Cr), clamp(Y - 0.344136 * Cb - 0.714136 * Cr), clamp(Y + 1.772 * Cb));
+    }
+
+    // method to round a 16.16 fixed point value to a channel value
+    private static int fixedToByte(int fixed) {
+        return Math.max(0, Math.min(255, (fixed + 32768) >> 16));
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+}